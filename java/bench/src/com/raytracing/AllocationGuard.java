@@ -0,0 +1,104 @@
+package com.raytracing;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class AllocationGuard {
+    /* guards the hit methods against allocation, which is what most of the GC time of a render comes from:
+        traces a batch of rays (hits and misses) through every primitive type, a list, both bvhs and an instance
+        and measures the bytes allocated per ray with the allocation counter of the thread (after a warmup, so the
+        hit methods are compiled like in a render). A case allocating more than its budget makes the command fail,
+        so allocation which creeps back into a hot path is noticed before it shows up as GC time.
+
+        Run from the java directory:
+            javac -d out $(find src bench/src -name '*.java')
+            java -cp out com.raytracing.AllocationGuard [regex of cases]
+     */
+
+    private static final int WARMUP_ROUNDS = 200; // rounds over all rays before measuring
+    private static final int ROUNDS = 100;
+
+    // bytes per ray which are still counted as none, the counter itself allocates a little
+    private static final double TOLERANCE = 0.05;
+
+    // a hittable, rays for it and the bytes it may allocate per ray
+    private record Case(String name, Hittable hittable, Ray[] rays, double budget) { }
+
+    public static void main(String[] args) {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        Material material = new Lambertian(new Color(0.5, 0.5, 0.5));
+        Ray[] unitRays = HotPathBench.rays(new Point3(0, 0, 0), 1.5, 5);
+
+        HittableList mixed = new HittableList();
+        mixed.add(new Sphere(new Point3(0, 0, 0), 0.5, material));
+        mixed.add(new XYRect(-1, 1, -1, 1, -0.5, material));
+        mixed.add(new Box(new Point3(0.2, 0.2, 0.2), new Point3(1, 1, 1), material));
+
+        List<Case> cases = new ArrayList<>(List.of(
+            new Case("Sphere", new Sphere(new Point3(0, 0, 0), 1, material), unitRays, 0),
+            new Case("MovingSphere",
+                new MovingSphere(new Point3(0, 0, 0), new Point3(0, 0.5, 0), 0, 1, 1, material), unitRays, 0),
+            new Case("XYRect", new XYRect(-1, 1, -1, 1, 0, material), unitRays, 0),
+            new Case("XZRect", new XZRect(-1, 1, -1, 1, 0, material), unitRays, 0),
+            new Case("YZRect", new YZRect(-1, 1, -1, 1, 0, material), unitRays, 0),
+            new Case("Box", new Box(new Point3(-1, -1, -1), new Point3(1, 1, 1), material), unitRays, 0),
+            new Case("ConstantMedium",
+                new ConstantMedium(new Sphere(new Point3(0, 0, 0), 1, material), 1, new Color(1, 1, 1)), unitRays, 0),
+            new Case("HittableList", mixed, unitRays, 0)
+        ));
+
+        Ray[] bvhRays = HotPathBench.rays(new Point3(0, 0, 0), 10, 30);
+        cases.add(new Case("BVHNode", new BVHNode(HotPathBench.randomSpheres(), 0, 1), bvhRays, 0));
+        cases.add(new Case("FlatBVH", new FlatBVH(HotPathBench.randomSpheres(), 0, 1), bvhRays, 0));
+        cases.add(new Case("Instance", new Instance(new FlatBVH(HotPathBench.randomSpheres(), 0, 1),
+            Transform.scaling(1, 2, 1).then(Transform.rotationY(30)).then(Transform.translation(new Vec3(1, 0, 0)))),
+            bvhRays, 0));
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        boolean passed = true;
+
+        System.out.printf("%-16s %12s %12s %8s%n", "Case", "bytes/ray", "budget", "hits");
+        for (Case c : cases) {
+            if (!filter.matcher(c.name()).find()) continue;
+
+            HitRecord rec = new HitRecord();
+            for (int w = 0; w < WARMUP_ROUNDS; w++) {
+                trace(c, rec);
+            }
+
+            long hits = 0;
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            for (int m = 0; m < ROUNDS; m++) {
+                hits += trace(c, rec);
+            }
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+            double bytesPerRay = (double) allocated / ((long) ROUNDS * c.rays().length);
+            boolean over = bytesPerRay > c.budget() + TOLERANCE;
+            passed &= !over;
+            System.out.printf("%-16s %12.2f %12.2f %7.0f%%%s%n", c.name(), bytesPerRay, c.budget(),
+                100.0 * hits / ((long) ROUNDS * c.rays().length), over ? "  <-- over budget" : "");
+        }
+
+        if (!passed) {
+            System.out.println("Allocation over budget");
+            System.exit(1);
+        }
+    }
+
+    // traces all rays of a case once and computes the attributes of their hits, returns the number of hits
+    private static int trace(Case c, HitRecord rec) {
+        int hits = 0;
+        for (Ray ray : c.rays()) {
+            if (c.hittable().hit(ray, 0.001, Utility.Infinity, rec)) {
+                rec.resolve();
+                hits++;
+            }
+        }
+        return hits;
+    }
+}
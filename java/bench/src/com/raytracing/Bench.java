@@ -0,0 +1,155 @@
+package com.raytracing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+public class Bench {
+    /* small benchmark harness in the spirit of JMH (which needs a build system to pull it in, this project has none):
+        - every benchmark runs in a JVM of its own (fork), so the profile collected while running one benchmark
+          doesn't change how the JIT compiles the next one (e.g. a call to Hittable.hit that only ever saw spheres)
+        - warmup iterations until the code is compiled, then measured iterations of a fixed duration
+        - the result of every operation is consumed, so the JIT can't remove the work
+        - bytes/op come from the allocation counter of the thread, like gc.alloc.rate.norm of JMH's gc profiler
+
+        options: [regex of the benchmarks to run] [--warmup n] [--iterations n] [--time ms] [--no-fork]
+     */
+
+    public interface Operation {
+        // runs the operation with index i, the result is consumed so the work can't be optimized away
+        double run(int i);
+    }
+
+    private static final int BATCH = 64; // operations between two looks at the clock
+
+    private static volatile double sink;
+
+    private int warmupIterations = 5;
+    private int iterations = 10;
+    private long iterationMillis = 500;
+    private boolean fork = true;
+
+    // nanoseconds per operation: mean and standard deviation over the iterations; allocated bytes per operation
+    public record Result(String name, double nsPerOp, double deviation, double bytesPerOp) { }
+
+    /**
+     * Runs the benchmarks selected by the command line arguments and prints a table of the results.
+     * @param benchmarks setup of every benchmark by name, the setup is not measured
+     * @param mainClass class whose main method calls this one, started again for every fork
+     */
+    public static void run(String[] args, Map<String, Supplier<Operation>> benchmarks, Class<?> mainClass)
+        throws IOException, InterruptedException {
+        Bench bench = new Bench();
+        Pattern filter = Pattern.compile(".*");
+        String single = null;
+
+        for (int a = 0; a < args.length; a++) {
+            switch (args[a]) {
+                case "--warmup" -> bench.warmupIterations = Integer.parseInt(args[++a]);
+                case "--iterations" -> bench.iterations = Integer.parseInt(args[++a]);
+                case "--time" -> bench.iterationMillis = Long.parseLong(args[++a]);
+                case "--no-fork" -> bench.fork = false;
+                case "--run" -> single = args[++a]; // inside a fork
+                default -> filter = Pattern.compile(args[a]);
+            }
+        }
+
+        if (single != null) {
+            Result result = bench.measure(single, benchmarks.get(single).get());
+            System.out.printf("RESULT %s %s %s %s%n",
+                single, result.nsPerOp(), result.deviation(), result.bytesPerOp());
+            return;
+        }
+
+        System.out.printf("%-32s %14s %12s %12s%n", "Benchmark", "ns/op", "+- sd", "bytes/op");
+        for (String name : benchmarks.keySet()) {
+            if (!filter.matcher(name).find()) continue;
+
+            Result result = bench.fork
+                ? bench.forked(name, mainClass)
+                : bench.measure(name, benchmarks.get(name).get());
+            System.out.printf("%-32s %14.2f %12.2f %12.1f%n",
+                name, result.nsPerOp(), result.deviation(), result.bytesPerOp());
+        }
+    }
+
+    public Result measure(String name, Operation operation) {
+        for (int w = 0; w < this.warmupIterations; w++) {
+            iteration(operation);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        double[] nsPerOp = new double[this.iterations];
+        long ops = 0;
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        for (int m = 0; m < this.iterations; m++) {
+            long start = System.nanoTime();
+            long n = iteration(operation);
+            nsPerOp[m] = (double) (System.nanoTime() - start) / n;
+            ops += n;
+        }
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        double mean = 0;
+        for (double v : nsPerOp) mean += v / nsPerOp.length;
+        double variance = 0;
+        for (double v : nsPerOp) variance += (v - mean) * (v - mean) / Math.max(1, nsPerOp.length - 1);
+
+        return new Result(name, mean, Math.sqrt(variance), (double) allocated / ops);
+    }
+
+    // runs the operation for iterationMillis, returns the number of operations
+    private long iteration(Operation operation) {
+        long end = System.nanoTime() + this.iterationMillis * 1_000_000;
+        long ops = 0;
+        double result = 0;
+
+        do {
+            for (int k = 0; k < BATCH; k++) {
+                result += operation.run((int) ops + k);
+            }
+            ops += BATCH;
+        } while (System.nanoTime() < end);
+
+        sink = result;
+        return ops;
+    }
+
+    // runs a single benchmark in a new JVM with the same class path and reads back its result
+    private Result forked(String name, Class<?> mainClass) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+            Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+            "-cp", System.getProperty("java.class.path"),
+            mainClass.getName(), "--run", name,
+            "--warmup", String.valueOf(this.warmupIterations),
+            "--iterations", String.valueOf(this.iterations),
+            "--time", String.valueOf(this.iterationMillis)
+        ));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        Result result = null;
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (!line.startsWith("RESULT ")) continue;
+                String[] values = line.split(" ");
+                result = new Result(name,
+                    Double.parseDouble(values[2]), Double.parseDouble(values[3]), Double.parseDouble(values[4]));
+            }
+        }
+
+        if (process.waitFor() != 0 || result == null)
+            throw new IllegalStateException("Benchmark '" + name + "' failed in its fork");
+        return result;
+    }
+}
@@ -0,0 +1,195 @@
+package com.raytracing;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+public class BuildBench {
+    /* build times of the bounding volume hierarchies for lists of random spheres of growing size:
+        the SAH constructors of BVHNode and FlatBVH against the linear (Morton code) builder with and without the
+        SAH top levels, and both FlatBVHs loaded from the BVHCache (the file is written by a build before the timing
+        starts). Besides the build time every tree gets its SAH cost and the closest hits per second of a
+        batch of random rays, so a faster build can be weighed against slower rendering.
+        Every build runs a few times (once for the biggest lists) and the fastest is reported, a build which runs
+        out of heap is reported as such and the others go on.
+
+        After that an animation of moving spheres: every frame the tree is refitted for the time of the frame
+        (FlatBVH.update) and compared with a tree built from scratch for it, with build and refit times, the SAH
+        cost growth of the refitted tree, closest hits per second of both and the frames which triggered a rebuild.
+
+        Run from the java directory, with enough heap for the biggest list (about 400 bytes per sphere):
+            javac -d out $(find src bench/src -name '*.java')
+            java -Xmx5g -cp out com.raytracing.BuildBench [sizes, default 10000 1000000 10000000]
+                                                           [--animate spheres, 0 for none] [--frames n]
+     */
+
+    private static final int RAYS = 1 << 16;
+    private static final long MAX_REPEATED_SIZE = 1_000_000; // bigger lists are only built once
+    private static final double SPEED = 2; // distance a sphere of the animation moves per frame, spheres are 10 apart
+    private static final double SHUTTER = 0.5; // part of a frame the camera is open
+
+    // cached builders go through the BVHCache
+    private record Builder(String name, Function<HittableList, Hittable> build, boolean cached) { }
+
+    public static void main(String[] args) throws IOException {
+        List<Long> sizes = new ArrayList<>();
+        int animated = 100_000;
+        int frames = 12;
+        for (int a = 0; a < args.length; a++) {
+            switch (args[a]) {
+                case "--animate" -> animated = Integer.parseInt(args[++a]);
+                case "--frames" -> frames = Integer.parseInt(args[++a]);
+                default -> sizes.add(Long.parseLong(args[a]));
+            }
+        }
+        if (sizes.isEmpty()) sizes = List.of(10_000L, 1_000_000L, 10_000_000L);
+
+        List<Builder> builders = List.of(
+            new Builder("BVHNode", list -> new BVHNode(list, 0, 1), false),
+            new Builder("FlatBVH", list -> new FlatBVH(list, 0, 1), false),
+            new Builder("FlatBVH.linear", list -> FlatBVH.linear(list, 0, 1), false),
+            new Builder("FlatBVH.linear/noSAH", list -> FlatBVH.linear(list, 0, 1, 0), false),
+            new Builder("FlatBVH/cached", list -> new FlatBVH(list, 0, 1), true),
+            new Builder("FlatBVH.linear/cached", list -> FlatBVH.linear(list, 0, 1), true)
+        );
+        Path cache = Files.createTempDirectory("bvhcache");
+
+        System.out.printf("%-22s %10s %10s %10s %12s %10s%n", "Builder", "spheres", "build s", "nodes", "SAH cost",
+            "Mrays/s");
+
+        // one small round first, so the builders are compiled before anything is measured
+        HittableList warmup = spheres(10_000);
+        for (Builder builder : builders) {
+            BVHCache.setDirectory(builder.cached() ? cache : null);
+            for (int i = 0; i < 5; i++) {
+                builder.build().apply(warmup);
+            }
+        }
+        BVHCache.setDirectory(null);
+
+        for (long size : sizes) {
+            HittableList spheres = spheres((int) size);
+            Ray[] rays = rays((int) size);
+
+            for (Builder builder : builders) {
+                Hittable bvh = null;
+                double best = Utility.Infinity;
+                BVHCache.setDirectory(builder.cached() ? cache : null);
+                try {
+                    if (builder.cached()) builder.build().apply(spheres); // writes the file
+                    for (int i = 0; i < ((size > MAX_REPEATED_SIZE) ? 1 : 3); i++) {
+                        bvh = null;
+                        System.gc();
+                        long start = System.nanoTime();
+                        bvh = builder.build().apply(spheres);
+                        best = Math.min(best, (System.nanoTime() - start) / 1e9);
+                    }
+                } catch (OutOfMemoryError e) {
+                    bvh = null;
+                    System.out.printf("%-22s %10d %10s%n", builder.name(), size, "out of heap");
+                    continue;
+                } finally {
+                    BVHCache.setDirectory(null);
+                }
+
+                int nodes = (bvh instanceof FlatBVH flat) ? flat.getNodeCount() : 0;
+                double sahCost = (bvh instanceof FlatBVH flat) ? flat.getSahCost() : ((BVHNode) bvh).getSahCost();
+                System.out.printf(Locale.ROOT, "%-22s %10d %10.3f %10s %12.2f %10.2f%n", builder.name(), size, best,
+                    (nodes > 0) ? Integer.toString(nodes) : "-", sahCost, trace(bvh, rays));
+            }
+        }
+
+        try (Stream<Path> files = Files.walk(cache)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+
+        if (animated > 0) animation(animated, frames);
+    }
+
+    // spheres moving in random directions, frame f shows them from time f to f + SHUTTER
+    private static void animation(int n, int frames) {
+        Utility.setSeed(3);
+        double half = 5 * Math.cbrt(n);
+        Material material = new Lambertian(new Color(0.5, 0.5, 0.5));
+        HittableList spheres = new HittableList();
+        for (int i = 0; i < n; i++) {
+            Vec3 center = Vec3.random(-half, half);
+            spheres.add(new MovingSphere(center.toPoint3(), Vec3.add(center, Vec3.mul(Vec3.randomUnitVector(), SPEED))
+                .toPoint3(), 0, 1, Utility.randomDouble(0.5, 1.5), material));
+        }
+        Ray[] rays = rays(n);
+
+        System.out.printf("%n%d moving spheres, rebuild when the SAH cost grew by more than %.2f times%n", n,
+            FlatBVH.DEFAULT_MAX_COST_GROWTH);
+        System.out.printf("%6s %10s %10s %12s %12s %12s %9s%n", "frame", "build s", "update s", "cost growth",
+            "built Mrays/s", "kept Mrays/s", "rebuilt");
+
+        FlatBVH kept = new FlatBVH(spheres, 0, SHUTTER);
+        for (int frame = 1; frame <= frames; frame++) {
+            double time0 = frame, time1 = frame + SHUTTER;
+            for (Ray ray : rays) {
+                ray.setTime(Utility.randomDouble(time0, time1));
+            }
+
+            System.gc();
+            long start = System.nanoTime();
+            FlatBVH built = new FlatBVH(spheres, time0, time1);
+            double buildSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            boolean rebuilt = kept.update(time0, time1, FlatBVH.DEFAULT_MAX_COST_GROWTH);
+            double updateSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf(Locale.ROOT, "%6d %10.3f %10.3f %12.2f %12.2f %12.2f %9s%n", frame, buildSeconds,
+                updateSeconds, kept.getSahCostGrowth(),
+                trace(built, rays), trace(kept, rays), rebuilt ? "yes" : "");
+        }
+    }
+
+    // spheres in a cube which grows with their number, so the density and the size of the spheres stay the same
+    private static HittableList spheres(int n) {
+        Utility.setSeed(1);
+        double half = 5 * Math.cbrt(n);
+        Material material = new Lambertian(new Color(0.5, 0.5, 0.5));
+        HittableList list = new HittableList();
+        for (int i = 0; i < n; i++) {
+            list.add(new Sphere(new Point3(
+                Utility.randomDouble(-half, half), Utility.randomDouble(-half, half), Utility.randomDouble(-half, half)
+            ), Utility.randomDouble(0.5, 1.5), material));
+        }
+        return list;
+    }
+
+    // rays from random points inside the cube in random directions
+    private static Ray[] rays(int n) {
+        Utility.setSeed(2);
+        double half = 5 * Math.cbrt(n);
+        Ray[] rays = new Ray[RAYS];
+        for (int i = 0; i < RAYS; i++) {
+            rays[i] = new Ray(Vec3.random(-half, half), Vec3.randomUnitVector(), 0);
+        }
+        return rays;
+    }
+
+    // closest hits of all rays per second, best of three rounds
+    private static double trace(Hittable bvh, Ray[] rays) {
+        HitRecord rec = new HitRecord();
+        double best = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (Ray ray : rays) {
+                bvh.hit(ray, 0.001, Utility.Infinity, rec);
+            }
+            best = Math.max(best, rays.length / ((System.nanoTime() - start) / 1e9) / 1e6);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,214 @@
+package com.raytracing;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class HotPathBench {
+    /* benchmarks of the hot paths of the renderer (see Bench for the harness):
+        - micro benchmarks of single methods: intersections, noise, scattering and camera rays
+        - macro benchmarks for every scene in Scenes: closest hits of camera rays (closestHit/...) and whole paths
+          traced by the PathTracer (path/...), one ray or path per operation
+        - shadow rays of the cornell box answered by a closest hit (shadow.hit/...) and by an any hit query
+          (shadow.occluded/...)
+
+        All inputs are generated with fixed seeds before measuring, so every run measures the same work.
+        Run from the java directory (the textures are loaded from there):
+            javac -d out $(find src bench/src -name '*.java')
+            java -cp out com.raytracing.HotPathBench [regex of benchmarks] [--iterations n] [--time ms] [--no-fork]
+     */
+
+    static final int INPUTS = 1024;              // inputs of the micro benchmarks, a power of two
+    private static final int SCENE_RAYS = 4096;  // camera rays of the macro benchmarks, a power of two
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, Supplier<Bench.Operation>> benchmarks = new LinkedHashMap<>();
+
+        benchmarks.put("Sphere.hit", HotPathBench::sphereHit);
+        benchmarks.put("AABB.hit", HotPathBench::aabbHit);
+        benchmarks.put("BVHNode.hit", () -> bvhHit(new BVHNode(randomSpheres(), 0, 1)));
+        benchmarks.put("FlatBVH.hit", () -> bvhHit(new FlatBVH(randomSpheres(), 0, 1)));
+        benchmarks.put("XYRect.hit", HotPathBench::xyRectHit);
+        benchmarks.put("Perlin.noise", HotPathBench::perlinNoise);
+        benchmarks.put("Lambertian.scatter", () -> scatter(new Lambertian(new Color(0.5, 0.5, 0.5))));
+        benchmarks.put("Metal.scatter", () -> scatter(new Metal(new Color(0.8, 0.8, 0.8), 0.3)));
+        benchmarks.put("Dielectric.scatter", () -> scatter(new Dielectric(1.5)));
+        benchmarks.put("Camera.getRay", HotPathBench::cameraRay);
+
+        for (int number : Scenes.NUMBERS) {
+            String name = Scenes.scene(number).getName();
+            benchmarks.put("closestHit/" + name, () -> closestHit(Scenes.scene(number)));
+            benchmarks.put("path/" + name, () -> path(Scenes.scene(number)));
+        }
+
+        benchmarks.put("shadow.hit/cornellBox", () -> shadow(Scenes.scene(6), false));
+        benchmarks.put("shadow.occluded/cornellBox", () -> shadow(Scenes.scene(6), true));
+
+        Bench.run(args, benchmarks, HotPathBench.class);
+    }
+
+    // --------------------------------------------------------------------------------------------- micro benchmarks
+
+    private static Bench.Operation sphereHit() {
+        Sphere sphere = new Sphere(new Point3(0, 0, 0), 1, new Lambertian(new Color(0.5, 0.5, 0.5)));
+        Ray[] rays = rays(new Point3(0, 0, 0), 1.5, 5);
+        HitRecord rec = new HitRecord();
+
+        return i -> sphere.hit(rays[i & (INPUTS - 1)], 0.001, Utility.Infinity, rec) ? rec.getT() : 0;
+    }
+
+    private static Bench.Operation aabbHit() {
+        AABB box = new AABB(new Point3(-1, -1, -1), new Point3(1, 1, 1));
+        Ray[] rays = rays(new Point3(0, 0, 0), 1.5, 5);
+
+        return i -> box.hit(rays[i & (INPUTS - 1)], 0.001, Utility.Infinity) ? 1 : 0;
+    }
+
+    private static Bench.Operation bvhHit(Hittable bvh) {
+        Ray[] rays = rays(new Point3(0, 0, 0), 10, 30);
+        HitRecord rec = new HitRecord();
+
+        return i -> bvh.hit(rays[i & (INPUTS - 1)], 0.001, Utility.Infinity, rec) ? rec.getT() : 0;
+    }
+
+    private static Bench.Operation xyRectHit() {
+        XYRect rect = new XYRect(-1, 1, -1, 1, 0, new Lambertian(new Color(0.5, 0.5, 0.5)));
+        Ray[] rays = rays(new Point3(0, 0, 0), 1.5, 5);
+        HitRecord rec = new HitRecord();
+
+        return i -> rect.hit(rays[i & (INPUTS - 1)], 0.001, Utility.Infinity, rec) ? rec.getT() : 0;
+    }
+
+    private static Bench.Operation perlinNoise() {
+        Utility.setSeed(1);
+        Perlin perlin = new Perlin();
+        Vec3[] points = new Vec3[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            points[i] = Vec3.random(-8, 8);
+        }
+
+        return i -> perlin.noise(points[i & (INPUTS - 1)]);
+    }
+
+    // scatters rays which hit a unit sphere made of material
+    private static Bench.Operation scatter(Material material) {
+        Sphere sphere = new Sphere(new Point3(0, 0, 0), 1, material);
+        Ray[] rays = rays(new Point3(0, 0, 0), 0.9, 5); // all of them hit the sphere
+        HitRecord[] hits = new HitRecord[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            hits[i] = new HitRecord();
+            sphere.hit(rays[i], 0.001, Utility.Infinity, hits[i]);
+        }
+
+        Color attenuation = new Color();
+        Ray scattered = new Ray();
+        return i -> material.scatter(rays[i & (INPUTS - 1)], hits[i & (INPUTS - 1)], attenuation, scattered)
+            ? scattered.getDirection().x()
+            : 0;
+    }
+
+    private static Bench.Operation cameraRay() {
+        Camera cam = new Camera(
+            new Point3(13, 2, 3), new Point3(0, 0, 0), new Vec3(0, 1, 0), 20, (double) 16 / 9, 0.1, 10, 0, 1
+        );
+        Utility.setSeed(1);
+        double[] coordinates = new double[2 * INPUTS];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = Utility.randomDouble();
+        }
+
+        return i -> {
+            int j = i & (INPUTS - 1);
+            return cam.getRay(coordinates[2 * j], coordinates[2 * j + 1]).getDirection().x();
+        };
+    }
+
+    // INPUTS rays starting at distance from center, aiming at random points within spread of it
+    static Ray[] rays(Point3 center, double spread, double distance) {
+        Utility.setSeed(1);
+        Ray[] rays = new Ray[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            Vec3 origin = Vec3.add(center, Vec3.mul(Vec3.randomUnitVector(), distance));
+            Vec3 target = Vec3.add(center, Vec3.mul(Vec3.randomInUnitSphere(), spread));
+            rays[i] = new Ray(origin, Vec3.sub(target, origin), Utility.randomDouble());
+        }
+        return rays;
+    }
+
+    // 1000 small spheres spread over a cube around the origin
+    static HittableList randomSpheres() {
+        Utility.setSeed(1);
+        Material material = new Lambertian(new Color(0.5, 0.5, 0.5));
+        HittableList spheres = new HittableList();
+        for (int i = 0; i < 1000; i++) {
+            spheres.add(new Sphere(
+                new Point3(Utility.randomDouble(-10, 10), Utility.randomDouble(-10, 10), Utility.randomDouble(-10, 10)),
+                Utility.randomDouble(0.2, 0.6), material
+            ));
+        }
+        return spheres;
+    }
+
+    // --------------------------------------------------------------------------------------------- macro benchmarks
+
+    private static Bench.Operation closestHit(Scene scene) {
+        Hittable world = scene.getWorld();
+        Ray[] rays = cameraRays(scene);
+        HitRecord rec = new HitRecord();
+
+        // the normal makes sure the attributes of the hit are computed, like when shading it
+        return i -> world.hit(rays[i & (SCENE_RAYS - 1)], 0.001, Utility.Infinity, rec) ? rec.getNormal().x() : 0;
+    }
+
+    private static Bench.Operation path(Scene scene) {
+        PathTracer tracer = new PathTracer(scene.getWorld(), scene.getBackground(), 100);
+        Ray[] rays = cameraRays(scene);
+
+        return i -> {
+            // every ray always traces the same path
+            int j = i & (SCENE_RAYS - 1);
+            Utility.setSeed(j, 1, 0);
+            return tracer.rayColor(rays[j]).luminance();
+        };
+    }
+
+    // shadow rays from the points seen by camera rays towards random points on the lights, like in sampleLight
+    private static Bench.Operation shadow(Scene scene, boolean anyHit) {
+        Hittable world = scene.getWorld();
+        List<Hittable> lights = new PathTracer(world, scene.getBackground(), 1).getLights();
+        Ray[] cameraRays = cameraRays(scene);
+        Ray[] rays = new Ray[SCENE_RAYS];
+        double[] tMax = new double[SCENE_RAYS];
+        HitRecord rec = new HitRecord();
+
+        Utility.setSeed(1);
+        for (int i = 0; i < SCENE_RAYS; i++) {
+            rays[i] = cameraRays[i];
+            tMax[i] = Utility.Infinity;
+            if (!world.hit(cameraRays[i], 0.001, Utility.Infinity, rec)) continue;
+
+            Point3 origin = rec.getP().toPoint3();
+            Hittable light = lights.get(i % lights.size());
+            rays[i] = new Ray(origin, Vec3.unitVector(light.random(origin)), 0);
+            if (light.hit(rays[i], 0.001, Utility.Infinity, rec)) tMax[i] = rec.getT() - 0.001;
+        }
+
+        if (anyHit) {
+            return i -> world.occluded(rays[i & (SCENE_RAYS - 1)], 0.001, tMax[i & (SCENE_RAYS - 1)]) ? 1 : 0;
+        }
+        return i -> world.hit(rays[i & (SCENE_RAYS - 1)], 0.001, tMax[i & (SCENE_RAYS - 1)], rec) ? 1 : 0;
+    }
+
+    // camera rays through random points of the image
+    private static Ray[] cameraRays(Scene scene) {
+        Camera cam = scene.camera();
+        Ray[] rays = new Ray[SCENE_RAYS];
+        for (int i = 0; i < SCENE_RAYS; i++) {
+            Utility.setSeed(i, 0, 0);
+            rays[i] = cam.getRay(Utility.randomDouble(), Utility.randomDouble());
+        }
+        return rays;
+    }
+}
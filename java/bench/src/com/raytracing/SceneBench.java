@@ -0,0 +1,278 @@
+package com.raytracing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SceneBench {
+    /* end-to-end benchmark and quality regression suite:
+        renders every scene of Scenes with a fixed seed, size and number of samples and records how long it took,
+        rays and paths per second and the peak heap. Every image is compared with a reference rendered with many
+        more samples (RMSE and relMSE of the linear colors), so a change which gets faster by adding bias or
+        noise shows up as well as one which just gets slower.
+
+        The results go to a JSON file (one scene per line), which can be compared with the results of an earlier
+        run: scenes whose relMSE got more than BASELINE_TOLERANCE times worse count as regressions and make the
+        command fail.
+
+        Run from the java directory (textures and references are loaded from there):
+            javac -d out $(find src bench/src -name '*.java')
+            java -cp out com.raytracing.SceneBench [--scenes regex] [--width n] [--spp n] [--json file]
+                                                   [--baseline file] [--update-references]
+        --update-references renders the references (REFERENCE_SPP samples per pixel) instead of benchmarking.
+     */
+
+    private static final Path REFERENCES = Path.of("bench", "references");
+    private static final int REFERENCE_SPP = 1024;
+    private static final int MAX_DEPTH = 100;
+    private static final double BASELINE_TOLERANCE = 1.2;
+    private static final double RELMSE_EPSILON = 1e-2; // keeps black pixels of the reference from dominating
+
+    private int width = 128;
+    private int samplesPerPixel = 16;
+
+    public static void main(String[] args) throws IOException {
+        SceneBench bench = new SceneBench();
+        Pattern scenes = Pattern.compile(".*");
+        Path json = Path.of("scene-bench.json");
+        Path baseline = null;
+        boolean updateReferences = false;
+
+        for (int a = 0; a < args.length; a++) {
+            switch (args[a]) {
+                case "--scenes" -> scenes = Pattern.compile(args[++a]);
+                case "--width" -> bench.width = Integer.parseInt(args[++a]);
+                case "--spp" -> bench.samplesPerPixel = Integer.parseInt(args[++a]);
+                case "--json" -> json = Path.of(args[++a]);
+                case "--baseline" -> baseline = Path.of(args[++a]);
+                case "--update-references" -> updateReferences = true;
+                default -> throw new IllegalArgumentException("Unknown option '" + args[a] + "'");
+            }
+        }
+
+        if (updateReferences) {
+            Files.createDirectories(REFERENCES);
+            for (int number : Scenes.NUMBERS) {
+                Scene scene = Scenes.scene(number);
+                if (!scenes.matcher(scene.getName()).find()) continue;
+
+                long start = System.nanoTime();
+                FrameBuffer frameBuffer = bench.render(scene, new RayCounter(scene.getWorld()), REFERENCE_SPP, 1);
+                new PFMWriter().write(frameBuffer, reference(scene));
+                System.out.printf("%-18s reference written in %.1f s%n", scene.getName(), seconds(start));
+            }
+            return;
+        }
+
+        System.out.printf("%-18s %9s %9s %12s %12s %10s %10s %10s%n",
+            "Scene", "build s", "render s", "rays/s", "paths/s", "heap MB", "RMSE", "relMSE");
+
+        List<String> results = new ArrayList<>();
+        for (int number : Scenes.NUMBERS) {
+            long start = System.nanoTime();
+            Scene scene = Scenes.scene(number);
+            double buildSeconds = seconds(start);
+            if (!scenes.matcher(scene.getName()).find()) continue;
+
+            results.add(bench.benchmark(scene, buildSeconds));
+        }
+
+        Files.writeString(json, String.format(Locale.ROOT,
+            "{%n  \"date\": \"%s\",%n  \"java\": \"%s\",%n  \"cores\": %d,%n" +
+            "  \"width\": %d,%n  \"samplesPerPixel\": %d,%n  \"scenes\": [%n%s%n  ]%n}%n",
+            Instant.now(), System.getProperty("java.version"), Runtime.getRuntime().availableProcessors(),
+            bench.width, bench.samplesPerPixel, String.join(",\n", results)
+        ));
+        System.out.printf("Results written to '%s'%n", json);
+
+        if (baseline != null && !compare(results, Files.readAllLines(baseline))) {
+            System.exit(1);
+        }
+    }
+
+    // renders a scene and returns its results as a line of JSON
+    private String benchmark(Scene scene, double buildSeconds) throws IOException {
+        RayCounter world = new RayCounter(scene.getWorld());
+
+        System.gc();
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+
+        long start = System.nanoTime();
+        FrameBuffer frameBuffer = render(scene, world, this.samplesPerPixel, 0);
+        double renderSeconds = seconds(start);
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heap) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        long paths = frameBuffer.getTotalSamples();
+        long rays = world.getRays();
+        double[] error = compare(frameBuffer, reference(scene));
+
+        System.out.printf(Locale.ROOT, "%-18s %9.2f %9.2f %12.0f %12.0f %10.1f %10s %10s%n",
+            scene.getName(), buildSeconds, renderSeconds, rays / renderSeconds, paths / renderSeconds,
+            peakHeap / 1e6, (error != null) ? String.format(Locale.ROOT, "%.5f", error[0]) : "-",
+            (error != null) ? String.format(Locale.ROOT, "%.5f", error[1]) : "no ref");
+
+        return String.format(Locale.ROOT,
+            "    {\"name\": \"%s\", \"width\": %d, \"height\": %d, \"buildSeconds\": %.3f, " +
+            "\"renderSeconds\": %.3f, \"rays\": %d, \"paths\": %d, \"raysPerSecond\": %.0f, " +
+            "\"pathsPerSecond\": %.0f, \"peakHeapBytes\": %d, \"rmse\": %s, \"relMSE\": %s}",
+            scene.getName(), frameBuffer.getWidth(), frameBuffer.getHeight(), buildSeconds, renderSeconds,
+            rays, paths, rays / renderSeconds, paths / renderSeconds, peakHeap,
+            (error != null) ? error[0] : "null", (error != null) ? error[1] : "null"
+        );
+    }
+
+    private FrameBuffer render(Scene scene, Hittable world, int samplesPerPixel, int frame) {
+        PathTracer tracer = new PathTracer(world, scene.getBackground(), MAX_DEPTH);
+        Renderer renderer = new Renderer(
+            tracer, scene.camera(), this.width, scene.imageHeight(this.width), samplesPerPixel
+        );
+        renderer.setFrame(frame); // the references use other random numbers than the benchmark
+
+        // without the progress output of the renderer
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            return renderer.render();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    private static Path reference(Scene scene) {
+        return REFERENCES.resolve(scene.getName() + ".pfm");
+    }
+
+    // {RMSE, relMSE} of the linear colors compared to the reference, null if there is no reference of that size
+    private static double[] compare(FrameBuffer frameBuffer, Path reference) throws IOException {
+        if (!Files.exists(reference)) return null;
+
+        FrameBuffer expected = Grade.readPFM(reference);
+        if (expected.getWidth() != frameBuffer.getWidth() || expected.getHeight() != frameBuffer.getHeight())
+            return null;
+
+        double squaredError = 0;
+        double relativeError = 0;
+        for (int y = 0; y < frameBuffer.getHeight(); y++) {
+            for (int x = 0; x < frameBuffer.getWidth(); x++) {
+                Color color = frameBuffer.getColor(x, y);
+                color.mulLocal(1.0 / frameBuffer.getSamples(x, y));
+                Color target = expected.getColor(x, y);
+
+                for (int c = 0; c < 3; c++) {
+                    double difference = color.getComp(c) - target.getComp(c);
+                    squaredError += difference * difference;
+                    relativeError += difference * difference
+                        / (target.getComp(c) * target.getComp(c) + RELMSE_EPSILON);
+                }
+            }
+        }
+
+        double values = 3.0 * frameBuffer.getWidth() * frameBuffer.getHeight();
+        return new double[]{Math.sqrt(squaredError / values), relativeError / values};
+    }
+
+    // compares the results with the JSON of an earlier run, returns false if the error of a scene got worse
+    private static boolean compare(List<String> results, List<String> baseline) {
+        Pattern field = Pattern.compile("\"(name|renderSeconds|relMSE)\": \"?([^\",}]+)");
+        boolean passed = true;
+
+        System.out.printf("%nCompared with the baseline:%n");
+        for (String result : results) {
+            String[] current = fields(field.matcher(result));
+            String[] earlier = null;
+            for (String line : baseline) {
+                String[] values = fields(field.matcher(line));
+                if (values[0] != null && values[0].equals(current[0])) earlier = values;
+            }
+
+            if (earlier == null || earlier[2].equals("null") || current[2].equals("null")) {
+                System.out.printf("%-18s not in the baseline or without reference%n", current[0]);
+                continue;
+            }
+
+            double time = Double.parseDouble(current[1]) / Double.parseDouble(earlier[1]);
+            double error = Double.parseDouble(current[2]) / Double.parseDouble(earlier[2]);
+            boolean regression = error > BASELINE_TOLERANCE;
+            passed &= !regression;
+            System.out.printf(Locale.ROOT, "%-18s time x%.2f, relMSE x%.2f%s%n",
+                current[0], time, error, regression ? "  <-- more error than before" : "");
+        }
+
+        return passed;
+    }
+
+    // {name, renderSeconds, relMSE} of a line of the JSON results
+    private static String[] fields(Matcher matcher) {
+        String[] values = new String[3];
+        while (matcher.find()) {
+            switch (matcher.group(1)) {
+                case "name" -> values[0] = matcher.group(2);
+                case "renderSeconds" -> values[1] = matcher.group(2);
+                case "relMSE" -> values[2] = matcher.group(2);
+            }
+        }
+        return values;
+    }
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    // counts all rays traced through the world: camera rays, bounces and shadow rays
+    private static class RayCounter implements Hittable {
+        private final Hittable world;
+        private final LongAdder rays = new LongAdder();
+
+        RayCounter(Hittable world) {
+            this.world = world;
+        }
+
+        long getRays() {
+            return this.rays.sum();
+        }
+
+        @Override
+        public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
+            this.rays.increment();
+            return this.world.hit(r, tMin, tMax, rec);
+        }
+
+        @Override
+        public boolean occluded(Ray r, double tMin, double tMax) {
+            this.rays.increment();
+            return this.world.occluded(r, tMin, tMax);
+        }
+
+        @Override
+        public boolean boundingBox(double time0, double time1, AABB outputBox) {
+            return this.world.boundingBox(time0, time1, outputBox);
+        }
+
+        @Override
+        public void collectLights(List<Hittable> lights) {
+            this.world.collectLights(lights);
+        }
+    }
+}
@@ -6,32 +6,32 @@ public class AABB {
         we don't bother checking if it hits any objects inside thus saving time.
      */
 
-    private Point3 minimum;
-    private Point3 maximum;
+    private Vec3 minimum;
+    private Vec3 maximum;
 
     public AABB() {
         this.minimum = new Point3();
         this.maximum = new Point3();
     }
 
-    public AABB(Point3 a, Point3 b) {
+    public AABB(Vec3 a, Vec3 b) {
         this.minimum = a;
         this.maximum = b;
     }
 
-    public Point3 getMinimum() {
+    public Vec3 getMinimum() {
         return this.minimum;
     }
 
-    public Point3 getMaximum() {
+    public Vec3 getMaximum() {
         return this.maximum;
     }
 
-    public void setMinimum(Point3 minimum) {
+    public void setMinimum(Vec3 minimum) {
         this.minimum = minimum;
     }
 
-    public void setMaximum(Point3 maximum) {
+    public void setMaximum(Vec3 maximum) {
         this.maximum = maximum;
     }
 
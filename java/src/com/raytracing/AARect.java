@@ -1,5 +1,8 @@
 package com.raytracing;
-class XYRect implements Hittable {
+
+import java.util.List;
+
+class XYRect implements Primitive {
     private final Material material;
     private final double x0, x1, y0, y1, k;
 
@@ -14,25 +17,44 @@ class XYRect implements Hittable {
 
     @Override
     public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        double t = (k - r.getOrigin().z()) / r.getDirection().z();
-        if (t < tMin || t > tMax)
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        double t = planeT(r, tMin, tMax);
+        if (Double.isNaN(t))
             return false;
 
+        rec.setHit(r, t, this);
+        return true;
+    }
+
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        return !Double.isNaN(planeT(r, tMin, tMax));
+    }
+
+    // t at which r crosses the rectangle between tMin and tMax, NaN if it doesn't. The tests are written so that
+    // NaN fails them (0 / 0 for a ray lying in the plane)
+    private double planeT(Ray r, double tMin, double tMax) {
+        double t = (k - r.getOrigin().z()) / r.getDirection().z();
+        if (!(t >= tMin && t <= tMax))
+            return Double.NaN;
+
         double x = r.getOrigin().x() + (t * r.getDirection().x());
         double y = r.getOrigin().y() + (t * r.getDirection().y());
-        if (x < x0 || x > x1 || y < y0 || y > y1)
-            return false;
+        if (!(x >= x0 && x <= x1 && y >= y0 && y <= y1))
+            return Double.NaN;
 
-        rec.setU((x - x0) / (x1 - x0));
-        rec.setV((y - y0) / (y1 - y0));
-        rec.setT(t);
+        return t;
+    }
 
-        Vec3 outwardNormal = new Vec3(0, 0, 1);
-        rec.setFaceNormal(r, outwardNormal);
-        rec.setMaterial(material);
-        rec.setP(r.at(t));
+    @Override
+    public void hitAttributes(Ray r, double t, HitRecord rec) {
+        rec.setP(r, t);
+        rec.setU((rec.getP().x() - x0) / (x1 - x0));
+        rec.setV((rec.getP().y() - y0) / (y1 - y0));
 
-        return true;
+        rec.setFaceNormal(r, 0, 0, 1);
+        rec.setMaterial(material);
     }
 
     @Override
@@ -44,9 +66,38 @@ class XYRect implements Hittable {
         ));
         return true;
     }
+
+    @Override
+    public double pdfValue(Vec3 origin, Vec3 direction) {
+        HitRecord rec = new HitRecord();
+        if (!this.hit(new Ray(origin, direction, 0), 0.001, Utility.Infinity, rec))
+            return 0;
+
+        // convert the uniform density over the area to a density over the solid angle seen from origin
+        double area = (x1 - x0) * (y1 - y0);
+        double distanceSquared = rec.getT() * rec.getT() * direction.lengthSquared();
+        double cosine = Math.abs(Vec3.dot(direction, rec.getNormal()) / direction.length());
+
+        return distanceSquared / (cosine * area);
+    }
+
+    @Override
+    public Vec3 random(Vec3 origin) {
+        // vector from origin to a uniformly distributed point on the rectangle
+        return new Vec3(
+            Utility.randomDouble(x0, x1) - origin.x(),
+            Utility.randomDouble(y0, y1) - origin.y(),
+            k - origin.z()
+        );
+    }
+
+    @Override
+    public void collectLights(List<Hittable> lights) {
+        if (material.isEmissive()) lights.add(this);
+    }
 }
 
-class XZRect implements Hittable {
+class XZRect implements Primitive {
     private final Material material;
     private final double x0, x1, z0, z1, k;
 
@@ -61,25 +112,44 @@ class XZRect implements Hittable {
 
     @Override
     public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        double t = (k - r.getOrigin().y()) / r.getDirection().y();
-        if (t < tMin || t > tMax)
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        double t = planeT(r, tMin, tMax);
+        if (Double.isNaN(t))
             return false;
 
+        rec.setHit(r, t, this);
+        return true;
+    }
+
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        return !Double.isNaN(planeT(r, tMin, tMax));
+    }
+
+    // t at which r crosses the rectangle between tMin and tMax, NaN if it doesn't. The tests are written so that
+    // NaN fails them (0 / 0 for a ray lying in the plane)
+    private double planeT(Ray r, double tMin, double tMax) {
+        double t = (k - r.getOrigin().y()) / r.getDirection().y();
+        if (!(t >= tMin && t <= tMax))
+            return Double.NaN;
+
         double x = r.getOrigin().x() + (t * r.getDirection().x());
         double z = r.getOrigin().z() + (t * r.getDirection().z());
-        if (x < x0 || x > x1 || z < z0 || z > z1)
-            return false;
+        if (!(x >= x0 && x <= x1 && z >= z0 && z <= z1))
+            return Double.NaN;
 
-        rec.setU((x - x0) / (x1 - x0));
-        rec.setV((z - z0) / (z1 - z0));
-        rec.setT(t);
+        return t;
+    }
 
-        Vec3 outwardNormal = new Vec3(0, 1, 0);
-        rec.setFaceNormal(r, outwardNormal);
-        rec.setMaterial(material);
-        rec.setP(r.at(t));
+    @Override
+    public void hitAttributes(Ray r, double t, HitRecord rec) {
+        rec.setP(r, t);
+        rec.setU((rec.getP().x() - x0) / (x1 - x0));
+        rec.setV((rec.getP().z() - z0) / (z1 - z0));
 
-        return true;
+        rec.setFaceNormal(r, 0, 1, 0);
+        rec.setMaterial(material);
     }
 
     @Override
@@ -91,9 +161,38 @@ class XZRect implements Hittable {
         ));
         return true;
     }
+
+    @Override
+    public double pdfValue(Vec3 origin, Vec3 direction) {
+        HitRecord rec = new HitRecord();
+        if (!this.hit(new Ray(origin, direction, 0), 0.001, Utility.Infinity, rec))
+            return 0;
+
+        // convert the uniform density over the area to a density over the solid angle seen from origin
+        double area = (x1 - x0) * (z1 - z0);
+        double distanceSquared = rec.getT() * rec.getT() * direction.lengthSquared();
+        double cosine = Math.abs(Vec3.dot(direction, rec.getNormal()) / direction.length());
+
+        return distanceSquared / (cosine * area);
+    }
+
+    @Override
+    public Vec3 random(Vec3 origin) {
+        // vector from origin to a uniformly distributed point on the rectangle
+        return new Vec3(
+            Utility.randomDouble(x0, x1) - origin.x(),
+            k - origin.y(),
+            Utility.randomDouble(z0, z1) - origin.z()
+        );
+    }
+
+    @Override
+    public void collectLights(List<Hittable> lights) {
+        if (material.isEmissive()) lights.add(this);
+    }
 }
 
-class YZRect implements Hittable {
+class YZRect implements Primitive {
     private final Material material;
     private final double y0, y1, z0, z1, k;
 
@@ -108,25 +207,44 @@ class YZRect implements Hittable {
 
     @Override
     public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        double t = (k - r.getOrigin().x()) / r.getDirection().x();
-        if (t < tMin || t > tMax)
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        double t = planeT(r, tMin, tMax);
+        if (Double.isNaN(t))
             return false;
 
+        rec.setHit(r, t, this);
+        return true;
+    }
+
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        return !Double.isNaN(planeT(r, tMin, tMax));
+    }
+
+    // t at which r crosses the rectangle between tMin and tMax, NaN if it doesn't. The tests are written so that
+    // NaN fails them (0 / 0 for a ray lying in the plane)
+    private double planeT(Ray r, double tMin, double tMax) {
+        double t = (k - r.getOrigin().x()) / r.getDirection().x();
+        if (!(t >= tMin && t <= tMax))
+            return Double.NaN;
+
         double y = r.getOrigin().y() + (t * r.getDirection().y());
         double z = r.getOrigin().z() + (t * r.getDirection().z());
-        if (y < y0 || y > y1 || z < z0 || z > z1)
-            return false;
+        if (!(y >= y0 && y <= y1 && z >= z0 && z <= z1))
+            return Double.NaN;
+
+        return t;
+    }
 
-        rec.setU((y - y0) / (y1 - y0));
-        rec.setV((z - z0) / (z1 - z0));
-        rec.setT(t);
+    @Override
+    public void hitAttributes(Ray r, double t, HitRecord rec) {
+        rec.setP(r, t);
+        rec.setU((rec.getP().y() - y0) / (y1 - y0));
+        rec.setV((rec.getP().z() - z0) / (z1 - z0));
 
-        Vec3 outwardNormal = new Vec3(1, 0, 0);
-        rec.setFaceNormal(r, outwardNormal);
+        rec.setFaceNormal(r, 1, 0, 0);
         rec.setMaterial(material);
-        rec.setP(r.at(t));
-
-        return true;
     }
 
     @Override
@@ -138,4 +256,33 @@ class YZRect implements Hittable {
         ));
         return true;
     }
+
+    @Override
+    public double pdfValue(Vec3 origin, Vec3 direction) {
+        HitRecord rec = new HitRecord();
+        if (!this.hit(new Ray(origin, direction, 0), 0.001, Utility.Infinity, rec))
+            return 0;
+
+        // convert the uniform density over the area to a density over the solid angle seen from origin
+        double area = (y1 - y0) * (z1 - z0);
+        double distanceSquared = rec.getT() * rec.getT() * direction.lengthSquared();
+        double cosine = Math.abs(Vec3.dot(direction, rec.getNormal()) / direction.length());
+
+        return distanceSquared / (cosine * area);
+    }
+
+    @Override
+    public Vec3 random(Vec3 origin) {
+        // vector from origin to a uniformly distributed point on the rectangle
+        return new Vec3(
+            k - origin.x(),
+            Utility.randomDouble(y0, y1) - origin.y(),
+            Utility.randomDouble(z0, z1) - origin.z()
+        );
+    }
+
+    @Override
+    public void collectLights(List<Hittable> lights) {
+        if (material.isEmissive()) lights.add(this);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,328 @@
+package com.raytracing;
+
+import java.util.List;
+
+public class BVHBuilder {
+    /* surface area heuristic (SAH) builder for bounding volume hierarchies:
+        the bounding box of every primitive is computed once up front. At each node the centroids are sorted
+        into a fixed number of bins along every axis and the split plane with the lowest expected cost
+        (area of the child boxes relative to the parent, times the number of primitives inside) is chosen.
+        Primitives are partitioned in place in a single index array, so there is no copying of lists and the
+        build runs in O(n log n).
+     */
+
+    public static final int DEFAULT_MAX_LEAF_SIZE = 4;
+
+    // version of the trees this builder makes, part of the BVHCache keys: raise it with any change to the build
+    static final int VERSION = 1;
+
+    // relative costs of stepping through a node and of intersecting a primitive
+    private static final double TRAVERSAL_COST = 1;
+    private static final double INTERSECTION_COST = 1;
+    private static final int BINS = 16;
+
+    private final Hittable[] primitives;
+    private final double[] bounds;    // 6 values per primitive: min x, y, z, max x, y, z
+    private final double[] centroids; // 3 values per primitive
+    private final int[] order;        // primitive indices, leaves reference contiguous ranges of it
+    private final int maxLeafSize;
+    private final Node root;
+    private int nodeCount;
+
+    // bin storage, reused for every node
+    private final double[] binBounds = new double[BINS * 6];
+    private final int[] binCounts = new int[BINS];
+    private final double[] rightArea = new double[BINS];
+    private final int[] rightCount = new int[BINS];
+
+    public BVHBuilder(List<Hittable> objects, double time0, double time1, int maxLeafSize) {
+        RenderEvents.BVHBuild event = new RenderEvents.BVHBuild();
+        event.begin();
+
+        int n = objects.size();
+        this.primitives = objects.toArray(new Hittable[0]);
+        this.bounds = new double[n * 6];
+        this.centroids = new double[n * 3];
+        this.order = new int[n];
+        this.maxLeafSize = Math.max(1, maxLeafSize);
+
+        AABB box = new AABB();
+        for (int i = 0; i < n; i++) {
+            if (!this.primitives[i].boundingBox(time0, time1, box))
+                System.err.println("No bounding box in BVHNode constructor");
+
+            for (int a = 0; a < 3; a++) {
+                this.bounds[6 * i + a] = box.getMinimum().getComp(a);
+                this.bounds[6 * i + 3 + a] = box.getMaximum().getComp(a);
+                this.centroids[3 * i + a] = 0.5 * (this.bounds[6 * i + a] + this.bounds[6 * i + 3 + a]);
+            }
+            this.order[i] = i;
+        }
+
+        this.root = (n > 0) ? build(0, n) : null;
+
+        event.primitives = n;
+        event.nodes = this.nodeCount;
+        event.maxLeafSize = this.maxLeafSize;
+        event.commit();
+    }
+
+    // builds a tree over boxes (6 values each) instead of primitives, getPrimitives() is null.
+    // LinearBVHBuilder uses it for its top levels
+    BVHBuilder(double[] boxes, int maxLeafSize) {
+        int n = boxes.length / 6;
+        this.primitives = null;
+        this.bounds = boxes;
+        this.centroids = new double[n * 3];
+        this.order = new int[n];
+        this.maxLeafSize = Math.max(1, maxLeafSize);
+
+        for (int i = 0; i < n; i++) {
+            for (int a = 0; a < 3; a++) {
+                this.centroids[3 * i + a] = 0.5 * (this.bounds[6 * i + a] + this.bounds[6 * i + 3 + a]);
+            }
+            this.order[i] = i;
+        }
+
+        this.root = (n > 0) ? build(0, n) : null;
+    }
+
+    private BVHBuilder(LinearBVHBuilder linear, int maxLeafSize) {
+        this.primitives = linear.getPrimitives();
+        this.bounds = null;
+        this.centroids = null;
+        this.order = linear.getOrder();
+        this.maxLeafSize = Math.max(1, maxLeafSize);
+        this.root = linear.getRoot();
+        this.nodeCount = linear.getNodeCount();
+    }
+
+    /**
+     * Builds the tree with LinearBVHBuilder instead of the SAH: in parallel and in linear time apart from sorting,
+     * for lists of millions of primitives. The tree is a bit slower to trace than the one of the constructor.
+     * @param sahLevels number of levels at the top which are rebuilt with the SAH, 0 for none
+     */
+    public static BVHBuilder linear(
+        List<Hittable> objects, double time0, double time1, int maxLeafSize, int sahLevels
+    ) {
+        RenderEvents.BVHBuild event = new RenderEvents.BVHBuild();
+        event.begin();
+
+        LinearBVHBuilder linear = new LinearBVHBuilder(objects, time0, time1, maxLeafSize, sahLevels);
+        BVHBuilder builder = new BVHBuilder(linear, maxLeafSize);
+
+        event.primitives = objects.size();
+        event.nodes = builder.nodeCount;
+        event.maxLeafSize = builder.maxLeafSize;
+        event.linear = true;
+        event.commit();
+        return builder;
+    }
+
+    public Node getRoot() {
+        return this.root;
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    public Hittable[] getPrimitives() {
+        return this.primitives;
+    }
+
+    // primitive indices in leaf order
+    public int[] getOrder() {
+        return this.order;
+    }
+
+    public int getMaxLeafSize() {
+        return this.maxLeafSize;
+    }
+
+    private Node build(int start, int end) {
+        this.nodeCount++;
+        Node node = new Node(start, end - start);
+        double[] cMin = {Utility.Infinity, Utility.Infinity, Utility.Infinity};
+        double[] cMax = {-Utility.Infinity, -Utility.Infinity, -Utility.Infinity};
+
+        for (int i = start; i < end; i++) {
+            int p = this.order[i];
+            for (int a = 0; a < 3; a++) {
+                node.bounds[a] = Math.min(node.bounds[a], this.bounds[6 * p + a]);
+                node.bounds[3 + a] = Math.max(node.bounds[3 + a], this.bounds[6 * p + 3 + a]);
+                cMin[a] = Math.min(cMin[a], this.centroids[3 * p + a]);
+                cMax[a] = Math.max(cMax[a], this.centroids[3 * p + a]);
+            }
+        }
+
+        int count = end - start;
+        if (count == 1) return node;
+
+        // find the cheapest split over all axes and bin borders
+        double parentArea = surfaceArea(node.bounds, 0);
+        double bestCost = Utility.Infinity;
+        int bestAxis = -1;
+        int bestBin = -1;
+
+        for (int axis = 0; axis < 3; axis++) {
+            double extent = cMax[axis] - cMin[axis];
+            if (extent <= 0) continue; // all centroids on one plane, no split possible along this axis
+
+            fillBins(start, end, axis, cMin[axis], extent);
+
+            // sweep from the right to get area and count of everything right of each border
+            double[] box = emptyBounds();
+            int n = 0;
+            for (int b = BINS - 1; b > 0; b--) {
+                grow(box, this.binBounds, b);
+                n += this.binCounts[b];
+                this.rightArea[b] = (n > 0) ? surfaceArea(box, 0) : 0;
+                this.rightCount[b] = n;
+            }
+
+            box = emptyBounds();
+            n = 0;
+            for (int b = 0; b < BINS - 1; b++) {
+                grow(box, this.binBounds, b);
+                n += this.binCounts[b];
+                if (n == 0 || this.rightCount[b + 1] == 0) continue;
+
+                double cost = TRAVERSAL_COST + INTERSECTION_COST *
+                    (surfaceArea(box, 0) * n + this.rightArea[b + 1] * this.rightCount[b + 1]) / parentArea;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = b;
+                }
+            }
+        }
+
+        double leafCost = INTERSECTION_COST * count;
+        if (count <= this.maxLeafSize && (bestAxis < 0 || leafCost <= bestCost)) return node;
+
+        int mid;
+        if (bestAxis < 0) {
+            // all centroids coincide, the leaf is too big, so just halve it
+            mid = start + count / 2;
+        } else {
+            mid = partition(start, end, bestAxis, bestBin, cMin[bestAxis], cMax[bestAxis] - cMin[bestAxis]);
+            node.axis = bestAxis;
+        }
+
+        node.left = build(start, mid);
+        node.right = build(mid, end);
+        node.count = 0;
+        return node;
+    }
+
+    private void fillBins(int start, int end, int axis, double min, double extent) {
+        for (int b = 0; b < BINS; b++) {
+            this.binCounts[b] = 0;
+            for (int a = 0; a < 3; a++) {
+                this.binBounds[6 * b + a] = Utility.Infinity;
+                this.binBounds[6 * b + 3 + a] = -Utility.Infinity;
+            }
+        }
+
+        for (int i = start; i < end; i++) {
+            int p = this.order[i];
+            int b = binIndex(this.centroids[3 * p + axis], min, extent);
+            this.binCounts[b]++;
+            for (int a = 0; a < 3; a++) {
+                this.binBounds[6 * b + a] = Math.min(this.binBounds[6 * b + a], this.bounds[6 * p + a]);
+                this.binBounds[6 * b + 3 + a] = Math.max(this.binBounds[6 * b + 3 + a], this.bounds[6 * p + 3 + a]);
+            }
+        }
+    }
+
+    // moves all primitives in bins <= splitBin to the front of the range, returns the first index of the rest
+    private int partition(int start, int end, int axis, int splitBin, double min, double extent) {
+        int i = start;
+        int j = end - 1;
+        while (i <= j) {
+            if (binIndex(this.centroids[3 * this.order[i] + axis], min, extent) <= splitBin) {
+                i++;
+            } else {
+                int temp = this.order[i];
+                this.order[i] = this.order[j];
+                this.order[j] = temp;
+                j--;
+            }
+        }
+        return i;
+    }
+
+    private static int binIndex(double centroid, double min, double extent) {
+        int b = (int) (BINS * (centroid - min) / extent);
+        return Math.min(Math.max(b, 0), BINS - 1);
+    }
+
+    private static double[] emptyBounds() {
+        return new double[]{
+            Utility.Infinity, Utility.Infinity, Utility.Infinity,
+            -Utility.Infinity, -Utility.Infinity, -Utility.Infinity
+        };
+    }
+
+    private static void grow(double[] box, double[] other, int index) {
+        for (int a = 0; a < 3; a++) {
+            box[a] = Math.min(box[a], other[6 * index + a]);
+            box[3 + a] = Math.max(box[3 + a], other[6 * index + 3 + a]);
+        }
+    }
+
+    // surface area of the box stored at offset in the array (6 values: min x, y, z, max x, y, z)
+    public static double surfaceArea(double[] box, int offset) {
+        double dx = box[offset + 3] - box[offset];
+        double dy = box[offset + 4] - box[offset + 1];
+        double dz = box[offset + 5] - box[offset + 2];
+        if (dx < 0 || dy < 0 || dz < 0) return 0;
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    /**
+     * Computes the expected cost of tracing a ray through the hierarchy according to the surface area heuristic:
+     * every node is weighted with the probability of a ray hitting it, which is the ratio of its surface area
+     * to the one of the root.
+     * @param node root of a (sub-)tree
+     * @return the SAH cost of the tree
+     */
+    public static double sahCost(Node node) {
+        double rootArea = surfaceArea(node.bounds, 0);
+        return (rootArea > 0) ? sahCost(node, rootArea) : 0;
+    }
+
+    private static double sahCost(Node node, double rootArea) {
+        double weight = surfaceArea(node.bounds, 0) / rootArea;
+        if (node.isLeaf())
+            return weight * INTERSECTION_COST * node.count;
+
+        return weight * TRAVERSAL_COST + sahCost(node.left, rootArea) + sahCost(node.right, rootArea);
+    }
+
+    // SAH cost of a node with the given surface area, not yet divided by the area of the root.
+    // count is the number of primitives of a leaf, 0 for an interior node
+    static double nodeCost(double area, int count) {
+        return area * ((count == 0) ? TRAVERSAL_COST : INTERSECTION_COST * count);
+    }
+
+    // node of the built tree. Interior nodes have two children, leaves a range [start, start + count) of the order
+    public static class Node {
+        final double[] bounds = emptyBounds();
+        Node left;
+        Node right;
+        int start;
+        int count;
+        int axis;
+
+        Node(int start, int count) {
+            this.start = start;
+            this.count = count;
+        }
+
+        public boolean isLeaf() {
+            return this.left == null;
+        }
+    }
+}
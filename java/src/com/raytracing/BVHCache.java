@@ -0,0 +1,239 @@
+package com.raytracing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+class BVHCache {
+    /* cache of built FlatBVHs on the disk, so a scene which was rendered before doesn't have to build its trees
+        again: a tree only depends on the boxes of its objects (at time0..time1) and the settings of the builder,
+        so those make the key. Computing it means getting every box once, O(n) instead of the O(n log n) of a
+        build. The file of the key is mapped and its arrays are copied out in bulk, in O(file size). A missing
+        file, one of another version or byte order, one which doesn't belong to the key or doesn't hold a valid
+        tree is ignored and the tree is built (and written) again. The versions of the builders are part of the key
+        too, so trees of an older build algorithm are never loaded. Materials and textures aren't part of the
+        trees, changing them keeps the cache.
+
+        file layout (native byte order): header, then the arrays of the FlatBVH
+            int magic, int version, long key,
+            int objects, int nodes, int depth, int maxLeafSize, int sahLevels, int (unused),
+            double time0, double time1,
+            double[6 * nodes] bounds, int[3 * nodes] nodes, int[objects] order
+     */
+    private static final int MAGIC = 0x52544256; // "RTBV"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 56;
+
+    // smaller trees are built faster than their file is found and read
+    static final int MIN_OBJECTS = 1000;
+
+    private static Path directory = null; // null => no cache
+
+    // the arrays of a FlatBVH: order[i] is the index of its i-th primitive in the list it was built from
+    record Tree(double[] bounds, int[] nodes, int[] order, int depth) { }
+
+    /**
+     * Turns the cache on for all FlatBVHs built from now on.
+     * @param directory directory of the cache files, created when the first one is written; null turns it off
+     */
+    public static void setDirectory(Path directory) {
+        BVHCache.directory = directory;
+    }
+
+    public static boolean isEnabled() {
+        return directory != null;
+    }
+
+    // content hash of the boxes of the objects and the settings of the builder
+    static long key(List<Hittable> objects, double time0, double time1, int maxLeafSize, int sahLevels) {
+        long hash = mix(VERSION, objects.size());
+        hash = mix(hash, ((long) BVHBuilder.VERSION << 32) | LinearBVHBuilder.VERSION);
+        hash = mix(hash, Double.doubleToLongBits(time0));
+        hash = mix(hash, Double.doubleToLongBits(time1));
+        hash = mix(hash, ((long) maxLeafSize << 32) | (sahLevels & 0xffffffffL));
+
+        AABB box = new AABB();
+        for (Hittable object : objects) {
+            if (!object.boundingBox(time0, time1, box)) {
+                hash = mix(hash, 0);
+                continue;
+            }
+            for (int a = 0; a < 3; a++) {
+                hash = mix(hash, Double.doubleToLongBits(box.getMinimum().getComp(a)));
+                hash = mix(hash, Double.doubleToLongBits(box.getMaximum().getComp(a)));
+            }
+        }
+        return hash;
+    }
+
+    // one step of the hash (the finalizer of SplitMix64 over the hash so far and the next value)
+    private static long mix(long hash, long value) {
+        long z = (hash ^ value) * 0x9E3779B97F4A7C15L + value;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static Path file(long key) {
+        return directory.resolve(String.format("%016x.bvh", key));
+    }
+
+    /**
+     * Loads the tree stored for a key.
+     * @param objects number of objects the tree has to be for
+     * @return the tree, null if there is no valid one for the key
+     */
+    static Tree load(long key, int objects) {
+        Path file = file(key);
+        if (!Files.isRegularFile(file)) return null;
+
+        RenderEvents.BVHCacheLoad event = new RenderEvents.BVHCacheLoad();
+        event.begin();
+        event.file = file.toString();
+
+        Tree tree = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= HEADER_BYTES) {
+                MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                try {
+                    tree = read(mapping.order(ByteOrder.nativeOrder()), key, objects);
+                } finally {
+                    FrameBuffer.unmap(mapping);
+                }
+            }
+            event.bytes = size;
+        } catch (IOException e) {
+            System.err.printf("Error while reading the bvh cache '%s': %s%n", file, e.getMessage());
+        }
+
+        event.hit = tree != null;
+        event.commit();
+        return tree;
+    }
+
+    private static Tree read(ByteBuffer buffer, long key, int objects) {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != key) return null;
+        if (buffer.getInt(16) != objects) return null;
+
+        int nodeCount = buffer.getInt(20);
+        int depth = buffer.getInt(24);
+        if (nodeCount < 0 || depth < 0 || buffer.capacity() != fileSize(nodeCount, objects)) return null;
+
+        double[] bounds = new double[6 * nodeCount];
+        int[] nodes = new int[3 * nodeCount];
+        int[] order = new int[objects];
+        buffer.position(HEADER_BYTES);
+        buffer.asDoubleBuffer().get(bounds);
+        buffer.position(HEADER_BYTES + 8 * bounds.length);
+        buffer.asIntBuffer().get(nodes);
+        buffer.position(HEADER_BYTES + 8 * bounds.length + 4 * nodes.length);
+        buffer.asIntBuffer().get(order);
+
+        return isValid(nodes, order, depth) ? new Tree(bounds, nodes, order, depth) : null;
+    }
+
+    private static long fileSize(int nodeCount, int objects) {
+        return HEADER_BYTES + 6L * Double.BYTES * nodeCount + 3L * Integer.BYTES * nodeCount
+            + (long) Integer.BYTES * objects;
+    }
+
+    // checks what traversal relies on: order is a permutation, children come after their parents, leaves stay
+    // inside the primitives and no path is deeper than the stacks. Corrupt files are rebuilt instead of crashing
+    private static boolean isValid(int[] nodes, int[] order, int depth) {
+        boolean[] seen = new boolean[order.length];
+        for (int index : order) {
+            if (index < 0 || index >= order.length || seen[index]) return false;
+            seen[index] = true;
+        }
+
+        int nodeCount = nodes.length / 3;
+        if (nodeCount == 0) return order.length == 0;
+
+        int[] level = new int[nodeCount]; // levels of the nodes, known for a node before its children are checked
+        level[0] = 1;
+        for (int node = 0; node < nodeCount; node++) {
+            if (level[node] == 0 || level[node] > depth) return false;
+
+            int first = nodes[3 * node];
+            int count = nodes[3 * node + 1];
+            if (count > 0) {
+                if (first < 0 || first > order.length - count) return false;
+                continue;
+            }
+
+            int axis = nodes[3 * node + 2];
+            if (count < 0 || node + 1 >= nodeCount || first <= node + 1 || first >= nodeCount || axis < 0 || axis > 2)
+                return false;
+            level[node + 1] = level[node] + 1;
+            level[first] = level[node] + 1;
+        }
+        return true;
+    }
+
+    // writes the tree for a key, errors only cost the cache
+    static void save(long key, Tree tree, double time0, double time1, int maxLeafSize, int sahLevels) {
+        Path file = file(key);
+        int nodeCount = tree.nodes().length / 3;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(fileSize(nodeCount, tree.order().length), 1 << 24))
+            .order(ByteOrder.nativeOrder());
+
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, "bvh", ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                buffer.putInt(MAGIC).putInt(VERSION).putLong(key)
+                    .putInt(tree.order().length).putInt(nodeCount).putInt(tree.depth())
+                    .putInt(maxLeafSize).putInt(sahLevels).putInt(0)
+                    .putDouble(time0).putDouble(time1);
+
+                for (double value : tree.bounds()) {
+                    if (buffer.remaining() < Double.BYTES) write(channel, buffer);
+                    buffer.putDouble(value);
+                }
+                for (int value : tree.nodes()) {
+                    if (buffer.remaining() < Integer.BYTES) write(channel, buffer);
+                    buffer.putInt(value);
+                }
+                for (int value : tree.order()) {
+                    if (buffer.remaining() < Integer.BYTES) write(channel, buffer);
+                    buffer.putInt(value);
+                }
+                write(channel, buffer);
+            }
+            // a file only shows up once it is complete, a run which gets killed while writing leaves no half file
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException e) {
+            System.err.printf("Error while writing the bvh cache '%s': %s%n", file, e.getMessage());
+        } finally {
+            deleteTemp(temp);
+        }
+    }
+
+    // removes the temporary file of a write which didn't get to the end
+    private static void deleteTemp(Path temp) {
+        if (temp == null) return;
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.err.printf("Error while deleting '%s': %s%n", temp, e.getMessage());
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -1,87 +1,122 @@
 package com.raytracing;
 
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 
 public class BVHNode implements Hittable {
     private final Hittable left;
     private final Hittable right;
+    private final Hittable[] leafObjects; // only set for leaves holding more than two objects
     private final AABB box;
+    private final double sahCost;
 
     public BVHNode(HittableList list, double time0, double time1) {
         // simple constructor to be called in code, transfers arguments to detailed constructor
         this(list.getObjects(), 0, list.getObjects().size(), time0, time1);
     }
 
-    public BVHNode(List<Hittable> srcObjects, int start, int end, double time0, double time1) {
-        List<Hittable> objects = new ArrayList<>(srcObjects); // modifiable array of srcObjects
+    public BVHNode(HittableList list, double time0, double time1, int maxLeafSize) {
+        this(new BVHBuilder(list.getObjects(), time0, time1, maxLeafSize));
+    }
 
-        int axis = Utility.randomInt(0, 2);
-        Comparator<Hittable> comparator = (axis == 0) ? this::boxCompareX
-            : (axis == 1) ? this::boxCompareY : this::boxCompareZ;
+    public BVHNode(List<Hittable> srcObjects, int start, int end, double time0, double time1) {
+        this(new BVHBuilder(srcObjects.subList(start, end), time0, time1, BVHBuilder.DEFAULT_MAX_LEAF_SIZE));
+    }
 
-        int objectSpan = end - start;
+    // built by the linear builder (BVHBuilder.linear), for lists of millions of objects
+    public static BVHNode linear(HittableList list, double time0, double time1) {
+        return new BVHNode(BVHBuilder.linear(
+            list.getObjects(), time0, time1, BVHBuilder.DEFAULT_MAX_LEAF_SIZE, LinearBVHBuilder.DEFAULT_SAH_LEVELS
+        ));
+    }
 
-        if (objectSpan == 1) {
-            this.left = this.right = objects.get(start);
+    private BVHNode(BVHBuilder builder) {
+        this(builder, builder.getRoot(), BVHBuilder.sahCost(builder.getRoot()));
+    }
 
-        } else if (objectSpan == 2) {
-            if (comparator.compare(objects.get(start), objects.get(start + 1)) < 0) {
-                this.left = objects.get(start);
-                this.right = objects.get(start + 1);
-            } else {
-                this.left = objects.get(start + 1);
-                this.right = objects.get(start);
-            }
-        } else {
-            objects.subList(start, end).sort(comparator);
+    private BVHNode(BVHBuilder builder, BVHBuilder.Node node, double sahCost) {
+        Hittable[] primitives = builder.getPrimitives();
+        int[] order = builder.getOrder();
 
-            int mid = start + objectSpan / 2;
-            this.left = new BVHNode(objects, start, mid, time0, time1);
-            this.right = new BVHNode(objects, mid, end, time0, time1);
-        }
+        if (!node.isLeaf()) {
+            this.left = new BVHNode(builder, node.left, 0);
+            this.right = new BVHNode(builder, node.right, 0);
+            this.leafObjects = null;
 
-        AABB boxLeft = new AABB();
-        AABB boxRight = new AABB();
+        } else if (node.count <= 2) {
+            this.left = primitives[order[node.start]];
+            this.right = primitives[order[node.start + node.count - 1]];
+            this.leafObjects = null;
 
-        if (!this.left.boundingBox(time0, time1, boxLeft) || !this.right.boundingBox(time0,time1, boxRight))
-            System.err.println("No bounding box in BVHNode constructor");
+        } else {
+            this.left = this.right = null;
+            this.leafObjects = new Hittable[node.count];
+            for (int i = 0; i < node.count; i++) {
+                this.leafObjects[i] = primitives[order[node.start + i]];
+            }
+        }
 
-        this.box = AABB.surroundingBox(boxLeft, boxRight);
+        this.box = new AABB(
+            new Point3(node.bounds[0], node.bounds[1], node.bounds[2]),
+            new Point3(node.bounds[3], node.bounds[4], node.bounds[5])
+        );
+        this.sahCost = sahCost;
     }
 
-    // box comparison functions, generic comparison function which gets called by axis-specific functions
-    private boolean boxCompare(Hittable a, Hittable b, int axis) {
-        AABB boxA = new AABB();
-        AABB boxB = new AABB();
-
-        if (!a.boundingBox(0, 0, boxA) || !b.boundingBox(0, 0, boxB))
-            System.err.println("No bounding box in BVHNode constructor.");
-
-        return boxA.getMinimum().getComp(axis) < boxB.getMinimum().getComp(axis);
+    // expected traversal cost of the tree according to the surface area heuristic, only set on the root
+    public double getSahCost() {
+        return this.sahCost;
     }
-    private int boxCompareX(Hittable a, Hittable b) {
-        return boxCompare(a, b, 0) ? -1 : 1;
-    }
-    private int boxCompareY(Hittable a, Hittable b) {
-        return boxCompare(a, b, 1) ? -1 : 1;
-    }
-    private int boxCompareZ(Hittable a, Hittable b) {
-        return boxCompare(a, b, 2) ? -1 : 1;
-    }
-
 
     @Override
     public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
+        if (Stats.ENABLED) Stats.get().nodesVisited++;
         if (!this.box.hit(r, tMin, tMax)) return false;
 
+        if (this.leafObjects != null) {
+            boolean hitAnything = false;
+            for (Hittable object : this.leafObjects) {
+                if (object.hit(r, tMin, tMax, rec)) {
+                    hitAnything = true;
+                    tMax = rec.getT();
+                }
+            }
+            return hitAnything;
+        }
+
         boolean hitLeft = this.left.hit(r, tMin, tMax, rec);
-        boolean hitRight = this.right.hit(r, tMin, hitLeft ? rec.getT() : tMax, rec);
+        boolean hitRight = this.right != this.left && this.right.hit(r, tMin, hitLeft ? rec.getT() : tMax, rec);
 
         return hitLeft || hitRight;
     }
 
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        if (Stats.ENABLED) Stats.get().nodesVisited++;
+        if (!this.box.hit(r, tMin, tMax)) return false;
+
+        if (this.leafObjects != null) {
+            for (Hittable object : this.leafObjects) {
+                if (object.occluded(r, tMin, tMax)) return true;
+            }
+            return false;
+        }
+
+        return this.left.occluded(r, tMin, tMax) || (this.right != this.left && this.right.occluded(r, tMin, tMax));
+    }
+
+    @Override
+    public void collectLights(List<Hittable> lights) {
+        if (this.leafObjects != null) {
+            for (Hittable object : this.leafObjects) {
+                object.collectLights(lights);
+            }
+            return;
+        }
+
+        this.left.collectLights(lights);
+        if (this.right != this.left) this.right.collectLights(lights);
+    }
+
     @Override
     public boolean boundingBox(double time0, double time1, AABB outputBox) {
         outputBox.set(this.box);
@@ -1,5 +1,7 @@
 package com.raytracing;
 
+import java.util.List;
+
 public class Box implements Hittable {
     private final Point3 boxMin;
     private final Point3 boxMax;
@@ -34,9 +36,19 @@ public class Box implements Hittable {
         return sides.hit(r, tMin, tMax, rec);
     }
 
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        return sides.occluded(r, tMin, tMax);
+    }
+
     @Override
     public boolean boundingBox(double time0, double time1, AABB outputBox) {
         outputBox.set(new AABB(boxMin, boxMax));
         return true;
     }
+
+    @Override
+    public void collectLights(List<Hittable> lights) {
+        sides.collectLights(lights);
+    }
 }
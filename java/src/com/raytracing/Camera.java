@@ -1,7 +1,7 @@
 package com.raytracing;
 
 public class Camera {
-    private final Point3 origin;
+    private final Vec3 origin;
     private final Vec3 horizontal;
     private final Vec3 vertical;
     private final Vec3 lowerLeftCorner;
@@ -54,12 +54,9 @@ public class Camera {
     }
 
     public Ray getRay(double s, double t) {
-        Vec3 rd = Vec3.mul(Vec3.randomInUnitDisk(), this.lensRadius);
+        Vec3 rd = Vec3.randomInUnitDisk().mulLocal(this.lensRadius);
         // Vec3 offset = u * rd.x() + v * rd.y();
-        Vec3 offset = Vec3.add(
-            Vec3.mul(this.u, rd.x()),
-            Vec3.mul(this.v, rd.y())
-        );
+        Vec3 offset = new Vec3().addScaledLocal(this.u, rd.x()).addScaledLocal(this.v, rd.y());
 
         /*  equals
             return Ray(
@@ -67,15 +64,13 @@ public class Camera {
                 lowerLeftCorner + s*horizontal + t*vertical - origin - offset,
                 randomDouble(time0, time1)
             ); */
+        Vec3 direction = new Vec3();
+        direction.set(this.lowerLeftCorner);
+        direction.addScaledLocal(this.horizontal, s).addScaledLocal(this.vertical, t).subLocal(this.origin).subLocal(offset);
+
         return new Ray(
-            Vec3.add(this.origin, offset).toPoint3(),
-            Vec3.add(
-                Vec3.add(this.lowerLeftCorner, Vec3.mul(this.horizontal, s)),
-                Vec3.sub(
-                    Vec3.sub(Vec3.mul(this.vertical, t), this.origin),
-                    offset
-                )
-            ),
+            offset.addLocal(this.origin),
+            direction,
             Utility.randomDouble(this.time0, this.time1)
         );
     }
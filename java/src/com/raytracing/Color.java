@@ -8,4 +8,9 @@ public class Color extends Vec3 {
     public Color(double r, double g, double b) {
         super(r, g, b);
     }
+
+    // perceived brightness (Rec. 709 weights)
+    public double luminance() {
+        return 0.2126 * x() + 0.7152 * y() + 0.0722 * z();
+    }
 }
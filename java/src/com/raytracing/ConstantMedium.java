@@ -1,9 +1,13 @@
 package com.raytracing;
 
-public class ConstantMedium implements Hittable {
+public class ConstantMedium implements Primitive {
     private final Hittable boundary;
     private final double negInvDensity;
     private final Material phaseFunction;
+    // where rays enter and leave the boundary, one pair per thread so hit doesn't allocate records
+    private final ThreadLocal<HitRecord[]> boundaryHits = ThreadLocal.withInitial(
+        () -> new HitRecord[]{new HitRecord(), new HitRecord()}
+    );
 
     public ConstantMedium(Hittable boundary, double density, Texture texture) {
         this.boundary = boundary;
@@ -19,18 +23,36 @@ public class ConstantMedium implements Hittable {
 
     @Override
     public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        HitRecord rec1 = new HitRecord(), rec2 = new HitRecord();
+        double t = scatterT(r, tMin, tMax);
+        if (Double.isNaN(t))
+            return false;
+
+        rec.setHit(r, t, this);
+        return true;
+    }
+
+    // a ray is blocked by the medium if it gets scattered inside of it, randomly just like in hit
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        return !Double.isNaN(scatterT(r, tMin, tMax));
+    }
+
+    // t at which the ray gets scattered inside the medium between tMin and tMax, NaN if it passes through
+    private double scatterT(Ray r, double tMin, double tMax) {
+        // not counted in Stats itself, the two queries of the boundary count their own tests
+        HitRecord[] boundaryHits = this.boundaryHits.get();
+        HitRecord rec1 = boundaryHits[0], rec2 = boundaryHits[1];
 
         if (!boundary.hit(r, -Utility.Infinity, Utility.Infinity, rec1))
-            return false;
+            return Double.NaN;
         if (!boundary.hit(r, rec1.getT() + 0.0001, Utility.Infinity, rec2))
-            return false;
+            return Double.NaN;
 
         if (rec1.getT() < tMin) rec1.setT(tMin);
         if (rec2.getT() > tMax) rec2.setT(tMax);
 
         if (rec1.getT() >= rec2.getT())
-            return false;
+            return Double.NaN;
 
         if (rec1.getT() < 0)
             rec1.setT(0);
@@ -40,16 +62,20 @@ public class ConstantMedium implements Hittable {
         final double hitDistance = negInvDensity * Math.log(Utility.randomDouble());
 
         if (hitDistance > distanceInsideBoundary)
-            return false;
+            return Double.NaN;
+
+        return rec1.getT() + hitDistance / rayLength;
+    }
 
-        rec.setT(rec1.getT() + hitDistance / rayLength);
-        rec.setP(r.at(rec.getT()));
+    @Override
+    public void hitAttributes(Ray r, double t, HitRecord rec) {
+        rec.setP(r, t);
 
-        rec.setNormal(new Vec3(1, 0, 0)); // arbitrary
+        rec.setNormal(1, 0, 0);                      // arbitrary
         rec.setFrontFace(true);                      // also arbitrary
+        rec.setU(0);                                 // no surface to put a texture on
+        rec.setV(0);
         rec.setMaterial(phaseFunction);
-
-        return true;
     }
 
     @Override
@@ -0,0 +1,341 @@
+package com.raytracing;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class FlatBVH implements Hittable {
+    /* compiled bounding volume hierarchy:
+        the tree built by BVHBuilder is stored in flat arrays in depth-first order, so the left child of a
+        node is always the next node and only the index of the right child has to be stored. Leaves reference
+        a contiguous range of the reordered primitive array. Traversal is a loop with an explicit stack instead
+        of recursive hit calls, and visits the child on the near side of the split first, so the far child can
+        often be skipped because its box starts behind the closest hit found so far.
+     */
+
+    public static final double DEFAULT_MAX_COST_GROWTH = 1.5; // see update
+
+    // all but the settings are replaced when the tree is rebuilt (update)
+    private double[] bounds;  // 6 values per node: min x, y, z, max x, y, z
+    private int[] nodes;      // 3 values per node: right child or first primitive, primitive count, axis
+    private Hittable[] primitives;
+    private int nodeCount;
+    private int depth;
+    private double sahCost;
+    private double builtSahCost; // SAH cost right after the last build
+    // traversal stack of every thread, so hit doesn't allocate one per ray
+    private ThreadLocal<int[]> stacks;
+
+    private final int maxLeafSize;
+    private final int sahLevels; // SAH levels of the linear builder, -1 for a tree of the SAH builder
+
+    public FlatBVH(HittableList list, double time0, double time1) {
+        this(list, time0, time1, BVHBuilder.DEFAULT_MAX_LEAF_SIZE);
+    }
+
+    public FlatBVH(HittableList list, double time0, double time1, int maxLeafSize) {
+        this(list.getObjects(), time0, time1, maxLeafSize, -1);
+    }
+
+    // built by the linear builder (BVHBuilder.linear), for lists of millions of objects
+    public static FlatBVH linear(HittableList list, double time0, double time1) {
+        return linear(list, time0, time1, LinearBVHBuilder.DEFAULT_SAH_LEVELS);
+    }
+
+    public static FlatBVH linear(HittableList list, double time0, double time1, int sahLevels) {
+        return new FlatBVH(list.getObjects(), time0, time1, BVHBuilder.DEFAULT_MAX_LEAF_SIZE, sahLevels);
+    }
+
+    private FlatBVH(List<Hittable> objects, double time0, double time1, int maxLeafSize, int sahLevels) {
+        this.maxLeafSize = Math.max(1, maxLeafSize);
+        this.sahLevels = sahLevels;
+        build(objects, time0, time1, BVHCache.isEnabled() && objects.size() >= BVHCache.MIN_OBJECTS);
+    }
+
+    // builds the tree, or loads it from the BVHCache if it was built before for the same boxes
+    private void build(List<Hittable> objects, double time0, double time1, boolean cached) {
+        long key = cached ? BVHCache.key(objects, time0, time1, this.maxLeafSize, this.sahLevels) : 0;
+        BVHCache.Tree tree = cached ? BVHCache.load(key, objects.size()) : null;
+
+        if (tree == null) {
+            tree = flatten((this.sahLevels < 0)
+                ? new BVHBuilder(objects, time0, time1, this.maxLeafSize)
+                : BVHBuilder.linear(objects, time0, time1, this.maxLeafSize, this.sahLevels));
+            if (cached) BVHCache.save(key, tree, time0, time1, this.maxLeafSize, this.sahLevels);
+        }
+        load(objects.toArray(new Hittable[0]), tree);
+    }
+
+    private void load(Hittable[] objects, BVHCache.Tree tree) {
+        this.bounds = tree.bounds();
+        this.nodes = tree.nodes();
+        this.nodeCount = this.nodes.length / 3;
+
+        int[] order = tree.order();
+        this.primitives = new Hittable[objects.length];
+        for (int i = 0; i < order.length; i++) {
+            this.primitives[i] = objects[order[i]];
+        }
+
+        this.depth = tree.depth();
+        this.sahCost = computeSahCost();
+        this.builtSahCost = this.sahCost;
+
+        // a new tree can be deeper, so the stacks start over as well
+        int depth = this.depth;
+        this.stacks = ThreadLocal.withInitial(() -> new int[depth]);
+    }
+
+    // the tree of a builder in the arrays of a FlatBVH
+    private static BVHCache.Tree flatten(BVHBuilder builder) {
+        double[] bounds = new double[builder.getNodeCount() * 6];
+        int[] nodes = new int[builder.getNodeCount() * 3];
+        int depth = (builder.getRoot() != null) ? flatten(builder.getRoot(), 0, 1, bounds, nodes)[1] : 0;
+        return new BVHCache.Tree(bounds, nodes, builder.getOrder(), depth);
+    }
+
+    // writes node and its subtree starting at index, returns {next free index, depth of the subtree}
+    private static int[] flatten(BVHBuilder.Node node, int index, int level, double[] bounds, int[] nodes) {
+        System.arraycopy(node.bounds, 0, bounds, 6 * index, 6);
+
+        if (node.isLeaf()) {
+            nodes[3 * index] = node.start;
+            nodes[3 * index + 1] = node.count;
+            return new int[]{index + 1, level};
+        }
+
+        int[] left = flatten(node.left, index + 1, level + 1, bounds, nodes);
+        nodes[3 * index] = left[0];
+        nodes[3 * index + 2] = node.axis;
+        int[] right = flatten(node.right, left[0], level + 1, bounds, nodes);
+
+        return new int[]{right[0], Math.max(left[1], right[1])};
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    public double getSahCost() {
+        return this.sahCost;
+    }
+
+    // SAH cost relative to the one right after the last build, 1 until the tree gets refitted
+    public double getSahCostGrowth() {
+        return (this.builtSahCost > 0) ? this.sahCost / this.builtSahCost : 1;
+    }
+
+    /*
+     Animation: when objects move (instances get new transformations, moving objects a new time window for the
+     next frame) the tree doesn't have to be built again. refit keeps it as it is and only updates the boxes:
+     every leaf gets the box of its objects at time0..time1 and every interior node the box around its children.
+     Children always come after their parents in the arrays, so that is one pass from the last node to the
+     first, O(n) instead of the O(n log n) of a build. The longer objects move away from where the tree was
+     built, the more the boxes overlap and the slower rays get through it, the growth of the SAH cost tells by
+     how much. update refits and builds the tree again (with the same builder) once that growth gets too big.
+     Neither may run while rays are traced through the tree.
+    */
+
+    public void refit(double time0, double time1) {
+        AABB box = new AABB();
+        for (int node = this.nodeCount - 1; node >= 0; node--) {
+            int b = 6 * node;
+            int count = this.nodes[3 * node + 1];
+
+            if (count > 0) {
+                int first = this.nodes[3 * node];
+                for (int a = 0; a < 3; a++) {
+                    this.bounds[b + a] = Utility.Infinity;
+                    this.bounds[b + 3 + a] = -Utility.Infinity;
+                }
+                for (int i = first; i < first + count; i++) {
+                    if (!this.primitives[i].boundingBox(time0, time1, box))
+                        System.err.println("No bounding box in FlatBVH refit");
+
+                    for (int a = 0; a < 3; a++) {
+                        this.bounds[b + a] = Math.min(this.bounds[b + a], box.getMinimum().getComp(a));
+                        this.bounds[b + 3 + a] = Math.max(this.bounds[b + 3 + a], box.getMaximum().getComp(a));
+                    }
+                }
+            } else {
+                int left = 6 * (node + 1);
+                int right = 6 * this.nodes[3 * node];
+                for (int a = 0; a < 3; a++) {
+                    this.bounds[b + a] = Math.min(this.bounds[left + a], this.bounds[right + a]);
+                    this.bounds[b + 3 + a] = Math.max(this.bounds[left + 3 + a], this.bounds[right + 3 + a]);
+                }
+            }
+        }
+
+        this.sahCost = computeSahCost();
+    }
+
+    /**
+     * Refits the tree for time0..time1 and builds it again if that made its SAH cost grow by more than
+     * maxCostGrowth since the last build.
+     * @param maxCostGrowth allowed growth of the SAH cost, e.g. DEFAULT_MAX_COST_GROWTH
+     * @return true if the tree was built again
+     */
+    public boolean update(double time0, double time1, double maxCostGrowth) {
+        refit(time0, time1);
+        if (getSahCostGrowth() <= maxCostGrowth) return false;
+
+        // boxes of moving objects hardly ever come back, so rebuilt trees don't go through the cache
+        build(Arrays.asList(this.primitives), time0, time1, false);
+        return true;
+    }
+
+    private double computeSahCost() {
+        if (this.nodeCount == 0) return 0;
+
+        double rootArea = BVHBuilder.surfaceArea(this.bounds, 0);
+        if (rootArea <= 0) return 0;
+
+        double cost = 0;
+        for (int node = 0; node < this.nodeCount; node++) {
+            cost += BVHBuilder.nodeCost(BVHBuilder.surfaceArea(this.bounds, 6 * node), this.nodes[3 * node + 1]);
+        }
+        return cost / rootArea;
+    }
+
+    @Override
+    public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
+        if (this.nodeCount == 0) return false;
+
+        final double ox = r.getOrigin().x(), oy = r.getOrigin().y(), oz = r.getOrigin().z();
+        final double invDx = 1 / r.getDirection().x();
+        final double invDy = 1 / r.getDirection().y();
+        final double invDz = 1 / r.getDirection().z();
+
+        int[] stack = this.stacks.get();
+        int stackSize = 0;
+        int node = 0;
+        boolean hitAnything = false;
+        int visited = 0; // for Stats, the JIT drops it when they are off
+
+        while (true) {
+            visited++;
+            if (boxHit(node, ox, oy, oz, invDx, invDy, invDz, tMin, tMax)) {
+                int count = this.nodes[3 * node + 1];
+
+                if (count == 0) {
+                    // interior node: continue with the near child, remember the far one
+                    int axis = this.nodes[3 * node + 2];
+                    boolean dirNeg = (axis == 0) ? invDx < 0 : (axis == 1) ? invDy < 0 : invDz < 0;
+
+                    if (dirNeg) {
+                        stack[stackSize++] = node + 1;
+                        node = this.nodes[3 * node];
+                    } else {
+                        stack[stackSize++] = this.nodes[3 * node];
+                        node = node + 1;
+                    }
+                    continue;
+                }
+
+                int first = this.nodes[3 * node];
+                for (int i = first; i < first + count; i++) {
+                    if (this.primitives[i].hit(r, tMin, tMax, rec)) {
+                        hitAnything = true;
+                        tMax = rec.getT();
+                    }
+                }
+            }
+
+            if (stackSize == 0) break;
+            node = stack[--stackSize];
+        }
+
+        if (Stats.ENABLED) Stats.get().nodesVisited += visited;
+        return hitAnything;
+    }
+
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        if (this.nodeCount == 0) return false;
+
+        final double ox = r.getOrigin().x(), oy = r.getOrigin().y(), oz = r.getOrigin().z();
+        final double invDx = 1 / r.getDirection().x();
+        final double invDy = 1 / r.getDirection().y();
+        final double invDz = 1 / r.getDirection().z();
+
+        int[] stack = this.stacks.get();
+        int stackSize = 0;
+        int node = 0;
+        int visited = 0;
+        boolean occluded = false;
+
+        // same traversal as hit, but tMax never shrinks and the first primitive hit ends it
+        search:
+        while (true) {
+            visited++;
+            if (boxHit(node, ox, oy, oz, invDx, invDy, invDz, tMin, tMax)) {
+                int count = this.nodes[3 * node + 1];
+
+                if (count == 0) {
+                    stack[stackSize++] = this.nodes[3 * node];
+                    node = node + 1;
+                    continue;
+                }
+
+                int first = this.nodes[3 * node];
+                for (int i = first; i < first + count; i++) {
+                    if (this.primitives[i].occluded(r, tMin, tMax)) {
+                        occluded = true;
+                        break search;
+                    }
+                }
+            }
+
+            if (stackSize == 0) break;
+            node = stack[--stackSize];
+        }
+
+        if (Stats.ENABLED) Stats.get().nodesVisited += visited;
+        return occluded;
+    }
+
+    private boolean boxHit(
+        int node, double ox, double oy, double oz, double invDx, double invDy, double invDz, double tMin, double tMax
+    ) {
+        final int b = 6 * node;
+
+        double t0 = (this.bounds[b] - ox) * invDx;
+        double t1 = (this.bounds[b + 3] - ox) * invDx;
+        if (invDx < 0) { double temp = t0; t0 = t1; t1 = temp; }
+        tMin = Math.max(t0, tMin);
+        tMax = Math.min(t1, tMax);
+        if (tMax <= tMin) return false;
+
+        t0 = (this.bounds[b + 1] - oy) * invDy;
+        t1 = (this.bounds[b + 4] - oy) * invDy;
+        if (invDy < 0) { double temp = t0; t0 = t1; t1 = temp; }
+        tMin = Math.max(t0, tMin);
+        tMax = Math.min(t1, tMax);
+        if (tMax <= tMin) return false;
+
+        t0 = (this.bounds[b + 2] - oz) * invDz;
+        t1 = (this.bounds[b + 5] - oz) * invDz;
+        if (invDz < 0) { double temp = t0; t0 = t1; t1 = temp; }
+        tMin = Math.max(t0, tMin);
+        tMax = Math.min(t1, tMax);
+        return tMax > tMin;
+    }
+
+    @Override
+    public void collectLights(List<Hittable> lights) {
+        for (Hittable primitive : this.primitives) {
+            primitive.collectLights(lights);
+        }
+    }
+
+    @Override
+    public boolean boundingBox(double time0, double time1, AABB outputBox) {
+        if (this.nodeCount == 0) return false;
+
+        outputBox.set(new AABB(
+            new Point3(this.bounds[0], this.bounds[1], this.bounds[2]),
+            new Point3(this.bounds[3], this.bounds[4], this.bounds[5])
+        ));
+        return true;
+    }
+}
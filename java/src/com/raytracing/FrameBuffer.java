@@ -0,0 +1,428 @@
+package com.raytracing;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FrameBuffer {
+    // framebuffer shared by all render threads: every pixel keeps the linear (not gamma corrected) sum of its
+    // samples and the number of samples taken. Row 0 is the top row of the image.
+    // Samples added one at a time also update the running mean and variance of the pixel's luminance, which
+    // adaptive sampling uses to decide where more samples are needed.
+
+    /*
+     the pixels are stored in square tiles (like the tiles of the Renderer), every tile holds its own sums, means,
+     m2s and sample counts. A render thread only touches the memory of the tile it is working on.
+
+     checkpoints: the tiles can live in a memory-mapped file instead of the heap. Everything the renderer writes
+     then ends up in the file, even if the process gets killed, and a render can be resumed by opening the file
+     again. The random numbers of a sample only depend on the pixel, the index of the sample and the frame, so the
+     sample counts are all the state that is needed to continue exactly where the render stopped.
+     While a pixel is being written, its sample count is negative. A pixel which is found like that when opening
+     a checkpoint was interrupted halfway, it is cleared and rendered again from its first sample.
+
+     out-of-core: the tiles of a file are only mapped when they are used, and at most RESIDENT_BYTES of them (but
+     always at least two rows of tiles, which the image writers and the scans over all pixels need) stay mapped.
+     The oldest tile gets unmapped when another one is needed, so the memory a render needs
+     doesn't grow with the size of the image and images far bigger than the memory (gigapixel renders) work.
+     Every access pins the tile for its duration, tiles which are pinned by another thread are skipped. Dropped
+     tiles are unmapped right away: leaving that to the garbage collector doesn't work, the small buffer objects
+     end up in the old generation and keep their (big) mappings alive for a long time.
+
+     file layout (native byte order): header (one page), then tile after tile (row-major), each with the sums
+     (3 doubles per pixel), mean, m2 (1 double per pixel each) and sample counts (1 int per pixel) of
+     tileSize * tileSize pixels. Tiles at the right and bottom edge have unused pixels.
+    */
+    private static final int MAGIC = 0x52544642; // "RTFB"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 4096; // keeps the tiles aligned to pages
+    private static final int DEFAULT_TILE_SIZE = 32;
+    private static final long RESIDENT_BYTES = 64L << 20;
+    private static final MethodHandle UNMAP = unmapHandle();
+
+    private final int width;
+    private final int height;
+    private final int samplesPerPixel; // samples per pixel the render is aiming for, only kept for checkpoints
+    private final int tileSize;
+    private final int tilesX;
+    private final Tile[] tiles; // tiles of a file are null while they are not mapped
+
+    // only used by framebuffers in a file
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode; // READ_ONLY for checkpoints which are only looked at (openReadOnly)
+    private final MappedByteBuffer header;
+    private final ArrayDeque<Integer> resident = new ArrayDeque<>(); // mapped tiles, the oldest first
+    private final int maxResident;
+
+    public FrameBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.samplesPerPixel = 0;
+        this.tileSize = DEFAULT_TILE_SIZE;
+        this.tilesX = (width + this.tileSize - 1) / this.tileSize;
+        this.tiles = new Tile[this.tilesX * ((height + this.tileSize - 1) / this.tileSize)];
+        for (int t = 0; t < this.tiles.length; t++) {
+            this.tiles[t] = new Tile(this.tileSize * this.tileSize);
+        }
+
+        this.channel = null;
+        this.mode = null;
+        this.header = null;
+        this.maxResident = this.tiles.length;
+    }
+
+    private FrameBuffer(
+        FileChannel channel, FileChannel.MapMode mode, int width, int height, int samplesPerPixel, int tileSize
+    ) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.samplesPerPixel = samplesPerPixel;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tiles = new Tile[this.tilesX * ((height + tileSize - 1) / tileSize)];
+
+        this.channel = channel;
+        this.mode = mode;
+        this.header = channel.map(mode, 0, HEADER_BYTES);
+        this.header.order(ByteOrder.nativeOrder());
+        if (mode == FileChannel.MapMode.READ_WRITE) {
+            this.header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, width).putInt(12, height)
+                .putInt(16, samplesPerPixel).putInt(20, tileSize);
+        }
+
+        this.maxResident = (int) Math.min(this.tiles.length,
+            Math.max(2 * this.tilesX, RESIDENT_BYTES / tileBytes(tileSize)));
+    }
+
+    private static long tileBytes(int tileSize) {
+        return (long) tileSize * tileSize * (5 * Double.BYTES + Integer.BYTES);
+    }
+
+    /**
+     * Creates an empty framebuffer backed by a memory-mapped file, an existing file gets overwritten.
+     * @param file checkpoint file
+     * @param samplesPerPixel samples per pixel of the render, stored so that it can be resumed with the same number
+     * @param tileSize side of the tiles in the file, best the same as the tiles of the Renderer
+     */
+    public static FrameBuffer create(Path file, int width, int height, int samplesPerPixel, int tileSize)
+        throws IOException {
+        FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        );
+        // the channel stays open for mapping tiles, it gets closed when the program ends
+        FrameBuffer frameBuffer = new FrameBuffer(
+            channel, FileChannel.MapMode.READ_WRITE, width, height, samplesPerPixel, Math.max(1, tileSize)
+        );
+
+        // sets the size of the file, the tiles take no space on the disk until they are written
+        long size = HEADER_BYTES + frameBuffer.tiles.length * tileBytes(frameBuffer.tileSize);
+        channel.write(ByteBuffer.allocate(1), size - 1);
+        return frameBuffer;
+    }
+
+    public static FrameBuffer create(Path file, int width, int height, int samplesPerPixel) throws IOException {
+        return create(file, width, height, samplesPerPixel, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Opens the framebuffer of an interrupted render to continue it.
+     * @param file checkpoint file written by a framebuffer from create()
+     * @throws IOException if the file can't be read or is not a checkpoint
+     */
+    public static FrameBuffer open(Path file) throws IOException {
+        FrameBuffer frameBuffer = open(file, FileChannel.MapMode.READ_WRITE);
+        frameBuffer.clearInterrupted();
+        return frameBuffer;
+    }
+
+    /**
+     * Opens a checkpoint only to read it (e.g. for Grade), which leaves the file exactly as it is, even while a
+     * render is still writing it. Pixels which are being written at that moment count as empty, the
+     * framebuffer can't be rendered into.
+     * @param file checkpoint file written by a framebuffer from create()
+     * @throws IOException if the file can't be read or is not a checkpoint
+     */
+    public static FrameBuffer openReadOnly(Path file) throws IOException {
+        return open(file, FileChannel.MapMode.READ_ONLY);
+    }
+
+    private static FrameBuffer open(Path file, FileChannel.MapMode mode) throws IOException {
+        FileChannel channel = (mode == FileChannel.MapMode.READ_WRITE)
+            ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+            channel.read(header, 0);
+
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException("'" + file + "' is not a checkpoint of this version");
+
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+            int tileSize = header.getInt(20);
+            long tiles = (long) ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+            if (tileSize < 1 || channel.size() != HEADER_BYTES + tiles * tileBytes(tileSize))
+                throw new IOException("'" + file + "' is incomplete");
+
+            return new FrameBuffer(channel, mode, width, height, header.getInt(16), tileSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // clears the pixels which were being written when the render was stopped
+    private void clearInterrupted() {
+        for (int t = 0; t < this.tiles.length; t++) {
+            Tile tile = pin(t);
+            for (int i = 0; i < this.tileSize * this.tileSize; i++) {
+                if (tile.samples.get(i) >= 0) continue;
+
+                tile.data.put(3 * i, 0).put(3 * i + 1, 0).put(3 * i + 2, 0);
+                tile.mean.put(i, 0);
+                tile.m2.put(i, 0);
+                tile.samples.put(i, 0);
+            }
+            unpin(tile);
+        }
+    }
+
+    // writes the changes of a memory-mapped framebuffer to the disk, does nothing for one on the heap
+    public synchronized void flush() {
+        if (this.channel == null || this.mode == FileChannel.MapMode.READ_ONLY) return;
+
+        this.header.force();
+        for (int t : this.resident) {
+            this.tiles[t].mapping.force();
+        }
+    }
+
+    private Tile tile(int t) {
+        Tile tile = this.tiles[t];
+        return (tile != null) ? tile : load(t);
+    }
+
+    // maps a tile of the file, drops the oldest one if too many are mapped already
+    private synchronized Tile load(int t) {
+        Tile tile = this.tiles[t];
+        if (tile != null) return tile;
+
+        // drop the oldest tile which isn't in use, pinned tiles go to the back of the queue
+        for (int tries = this.resident.size(); this.resident.size() >= this.maxResident && tries > 0; tries--) {
+            int oldest = this.resident.poll();
+            Tile old = this.tiles[oldest];
+            if (!old.users.compareAndSet(0, Integer.MIN_VALUE)) {
+                this.resident.add(oldest);
+                continue;
+            }
+
+            this.tiles[oldest] = null;
+            unmap(old.mapping); // the changes stay in the page cache, the kernel writes them to the file
+        }
+
+        try {
+            long size = tileBytes(this.tileSize);
+            tile = new Tile(this.channel.map(this.mode, HEADER_BYTES + t * size, size),
+                this.tileSize * this.tileSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Tile " + t + " of the framebuffer can't be mapped", e);
+        }
+
+        this.tiles[t] = tile;
+        this.resident.add(t);
+        return tile;
+    }
+
+    // tile t, which stays mapped until it is unpinned again
+    private Tile pin(int t) {
+        if (this.channel == null) return this.tiles[t]; // tiles on the heap are never dropped
+
+        while (true) {
+            Tile tile = tile(t);
+            if (tile.users.getAndIncrement() >= 0) return tile;
+            // the tile got dropped in the meantime, map it again
+        }
+    }
+
+    private static void unpin(Tile tile) {
+        if (tile.mapping != null) tile.users.decrementAndGet();
+    }
+
+    private Tile pin(int x, int y) {
+        return pin((y / this.tileSize) * this.tilesX + x / this.tileSize);
+    }
+
+    // also used by BVHCache
+    static void unmap(MappedByteBuffer mapping) {
+        if (UNMAP == null) return; // left to the garbage collector
+
+        try {
+            UNMAP.invokeExact((ByteBuffer) mapping);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Mapped file can't be unmapped", e);
+        }
+    }
+
+    // Unsafe.invokeCleaner(), the only way to unmap a buffer right away before Java 19; null if it isn't there
+    private static MethodHandle unmapHandle() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // index of a pixel inside its tile
+    private int indexInTile(int x, int y) {
+        return (y % this.tileSize) * this.tileSize + x % this.tileSize;
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public int getTileSize() {
+        return this.tileSize;
+    }
+
+    // samples per pixel stored in a checkpoint, 0 for a framebuffer on the heap
+    public int getSamplesPerPixel() {
+        return this.samplesPerPixel;
+    }
+
+    /**
+     * Adds a single sample to a pixel and updates its luminance statistics. Different threads may write to
+     * different pixels at the same time, but never to the same pixel.
+     * @param x column of the pixel, 0 is the left edge
+     * @param y row of the pixel, 0 is the top edge
+     * @param color color of the sample
+     */
+    public void addSample(int x, int y, Color color) {
+        Tile tile = pin(x, y);
+        int i = indexInTile(x, y);
+        int n = tile.samples.get(i);
+
+        // mark the pixel as being written, the fences keep the stores in this order (see checkpoints above)
+        tile.samples.put(i, ~n);
+        VarHandle.storeStoreFence();
+
+        tile.data.put(3 * i, tile.data.get(3 * i) + color.x());
+        tile.data.put(3 * i + 1, tile.data.get(3 * i + 1) + color.y());
+        tile.data.put(3 * i + 2, tile.data.get(3 * i + 2) + color.z());
+
+        double luminance = color.luminance();
+        double mean = tile.mean.get(i);
+        double delta = luminance - mean;
+        mean += delta / (n + 1);
+        tile.mean.put(i, mean);
+        tile.m2.put(i, tile.m2.get(i) + delta * (luminance - mean));
+
+        VarHandle.storeStoreFence();
+        tile.samples.put(i, n + 1);
+        unpin(tile);
+    }
+
+    // returns the sum of all samples of a pixel. A pixel which is being written (only seen by read-only
+    // framebuffers of a running render) counts as empty, like getSamples
+    public Color getColor(int x, int y) {
+        Tile tile = pin(x, y);
+        int i = indexInTile(x, y);
+        Color color = (tile.samples.get(i) < 0)
+            ? new Color(0, 0, 0)
+            : new Color(tile.data.get(3 * i), tile.data.get(3 * i + 1), tile.data.get(3 * i + 2));
+        unpin(tile);
+        return color;
+    }
+
+    public int getSamples(int x, int y) {
+        Tile tile = pin(x, y);
+        int samples = Math.max(0, tile.samples.get(indexInTile(x, y)));
+        unpin(tile);
+        return samples;
+    }
+
+    public long getTotalSamples() {
+        long total = 0;
+        for (int t = 0; t < this.tiles.length; t++) {
+            Tile tile = pin(t);
+            for (int i = 0; i < this.tileSize * this.tileSize; i++) {
+                // unused pixels of edge tiles stay at 0, pixels being written count as empty (like getSamples)
+                total += Math.max(0, tile.samples.get(i));
+            }
+            unpin(tile);
+        }
+        return total;
+    }
+
+    // mean luminance of the samples of a pixel
+    public double getMean(int x, int y) {
+        Tile tile = pin(x, y);
+        double mean = tile.mean.get(indexInTile(x, y));
+        unpin(tile);
+        return mean;
+    }
+
+    // sample variance of the luminance of the samples of a pixel, infinite for less than two samples
+    public double getVariance(int x, int y) {
+        Tile tile = pin(x, y);
+        int i = indexInTile(x, y);
+        int n = tile.samples.get(i);
+        double variance = (n < 2) ? Utility.Infinity : tile.m2.get(i) / (n - 1);
+        unpin(tile);
+        return variance;
+    }
+
+    private static final class Tile {
+        private final DoubleBuffer data;
+        private final DoubleBuffer mean; // running mean of the luminance
+        private final DoubleBuffer m2;   // running sum of squared differences from the mean (Welford's algorithm)
+        private final IntBuffer samples;
+        private final MappedByteBuffer mapping; // null on the heap
+        private final AtomicInteger users = new AtomicInteger(); // threads using the tile, negative once dropped
+
+        // tile on the heap
+        Tile(int pixels) {
+            this.data = DoubleBuffer.allocate(3 * pixels);
+            this.mean = DoubleBuffer.allocate(pixels);
+            this.m2 = DoubleBuffer.allocate(pixels);
+            this.samples = IntBuffer.allocate(pixels);
+            this.mapping = null;
+        }
+
+        // tile in a mapped region of a file, see the file layout above
+        Tile(MappedByteBuffer mapping, int pixels) {
+            int offset = 0;
+            this.data = mapping.slice(offset, 3 * pixels * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            offset += 3 * pixels * Double.BYTES;
+            this.mean = mapping.slice(offset, pixels * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            offset += pixels * Double.BYTES;
+            this.m2 = mapping.slice(offset, pixels * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            offset += pixels * Double.BYTES;
+            this.samples = mapping.slice(offset, pixels * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+            this.mapping = mapping;
+        }
+    }
+}
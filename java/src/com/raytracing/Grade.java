@@ -0,0 +1,96 @@
+package com.raytracing;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class Grade {
+    /* regrades a finished render without rendering it again:
+        reads the linear colors of a PFM image (see PFMWriter) or of a checkpoint (see FrameBuffer) and writes them
+        with a new exposure, tone mapping curve and gamma as BMP or PPM. Checkpoints are only read, so one can be
+        graded while its render is still running.
+
+        usage: java com.raytracing.Grade <input.pfm | render.checkpoint> <output.bmp | output.ppm>
+                                         [exposure] [CLAMP | REINHARD | ACES] [gamma]
+     */
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println(
+                "Usage: Grade <input.pfm | render.checkpoint> <output.bmp | output.ppm> " +
+                "[exposure] [CLAMP | REINHARD | ACES] [gamma]"
+            );
+            return;
+        }
+
+        double exposure = (args.length > 2) ? Double.parseDouble(args[2]) : 0;
+        ToneMapper.Operator operator = (args.length > 3)
+            ? ToneMapper.Operator.valueOf(args[3])
+            : ToneMapper.Operator.CLAMP;
+        double gamma = (args.length > 4) ? Double.parseDouble(args[4]) : 2;
+
+        try {
+            long start = System.nanoTime();
+            FrameBuffer frameBuffer = args[0].endsWith(".pfm")
+                ? readPFM(Path.of(args[0]))
+                : FrameBuffer.openReadOnly(Path.of(args[0]));
+            long read = System.nanoTime();
+
+            ToneMapper toneMapper = new ToneMapper(exposure, operator, gamma);
+            ImageWriter writer = args[1].endsWith(".ppm") ? new PPMWriter(toneMapper) : new BMPWriter(toneMapper);
+            writer.write(frameBuffer, Path.of(args[1]));
+            long written = System.nanoTime();
+
+            System.out.printf(
+                "Graded '%s' (%dx%d) into '%s': read in %.1f ms, mapped and written in %.1f ms\n",
+                args[0], frameBuffer.getWidth(), frameBuffer.getHeight(), args[1],
+                (read - start) / 1e6, (written - read) / 1e6
+            );
+        } catch (IOException e) {
+            System.out.printf("Error while grading '%s': %s\n", args[0], e.getMessage());
+        }
+    }
+
+    // reads a PFM image into a framebuffer with one sample per pixel
+    public static FrameBuffer readPFM(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            // header: "PF", width, height and scale, separated by white space and followed by a single one
+            String[] header = new String[4];
+            for (int i = 0; i < header.length; i++) {
+                StringBuilder token = new StringBuilder();
+                byte c = buffer.get();
+                while (Character.isWhitespace(c)) c = buffer.get();
+                while (!Character.isWhitespace(c)) {
+                    token.append((char) c);
+                    c = buffer.get();
+                }
+                header[i] = token.toString();
+            }
+
+            if (!header[0].equals("PF"))
+                throw new IOException("'" + file + "' is not a color PFM image");
+
+            int width = Integer.parseInt(header[1]);
+            int height = Integer.parseInt(header[2]);
+            buffer.order(Double.parseDouble(header[3]) < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+            if (buffer.remaining() < (long) width * height * 3 * Float.BYTES)
+                throw new IOException("'" + file + "' is incomplete");
+
+            // rows are stored from the bottom of the image to the top
+            FrameBuffer frameBuffer = new FrameBuffer(width, height);
+            for (int y = height - 1; y >= 0; y--) {
+                for (int x = 0; x < width; x++) {
+                    frameBuffer.addSample(x, y, new Color(buffer.getFloat(), buffer.getFloat(), buffer.getFloat()));
+                }
+            }
+
+            return frameBuffer;
+        }
+    }
+}
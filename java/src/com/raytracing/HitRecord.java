@@ -2,8 +2,23 @@ package com.raytracing;
 
 public class HitRecord {
     // HitRecord class: keeps track of elements that ray intersects with
-    private Point3 p;
-    private Vec3 normal;
+    // p and normal belong to the record, the setters copy into them so a hit doesn't allocate new vectors.
+    // Anything that needs them after the next hit with the same record has to copy them.
+    /*
+     While searching for the closest hit, primitives only store t, themselves and the ray (setHit). Everything
+     else (p, normal, front face, u, v, material) is computed by the object that was hit the first time one of
+     the getters asks for it, so it is computed once for the closest hit instead of for every closer candidate
+     found on the way, and never for rays which only need t (shadow rays, boundaries of media).
+     Hits inside an Instance are recorded in the object's space, the instance adds its transformation
+     (setInstance) and the attributes are moved into the world after the object computed them.
+    */
+    private final Vec3 p;
+    private final Vec3 normal;
+
+    private Primitive object; // object which still has to compute the attributes of the hit, null once they are set
+    private Ray ray;
+    private Transform transform; // object to world of the instance the pending hit is in, null if it's in the world
+    private final Ray objectRay; // copy of the ray of a pending hit in an instance, the instance reuses its own
 
     private Material material;
     private double t;
@@ -13,24 +28,94 @@ public class HitRecord {
     private boolean frontFace;
 
     public HitRecord() {
-        this.p = null;
-        this.normal = null;
+        this.p = new Vec3();
+        this.normal = new Vec3();
         this.material = null;
         this.t = 0;
         this.u = 0;
         this.v = 0;
         this.frontFace = false;
+        this.object = null;
+        this.ray = null;
+        this.transform = null;
+        this.objectRay = new Ray();
+    }
+
+    // records a hit at t of r, the attributes are computed by object.hitAttributes when they are needed
+    public void setHit(Ray r, double t, Primitive object) {
+        this.t = t;
+        this.ray = r;
+        this.object = object;
+        this.transform = null;
+    }
+
+    // records that the hit just recorded in an object is in an instance of it with the given transformation
+    public void setInstance(Transform transform) {
+        if (this.object == null) { // attributes already computed in the object's space, move them now
+            transform.toWorldPoint(this.p, this.p);
+            transform.toWorldNormal(this.normal, this.normal);
+            return;
+        }
+
+        if (this.transform == null) {
+            this.objectRay.setOrigin(this.ray.getOrigin());
+            this.objectRay.setDirection(this.ray.getDirection());
+            this.objectRay.setTime(this.ray.getTime());
+            this.ray = this.objectRay;
+            this.transform = transform;
+        } else {
+            // instance in an instance, the only case which allocates
+            this.transform = this.transform.then(transform);
+        }
+    }
+
+    // computes the attributes of the hit if that hasn't happened yet
+    public void resolve() {
+        if (this.object == null) return;
+
+        Primitive hitObject = this.object;
+        this.object = null; // the getters used by hitAttributes must not resolve again
+        hitObject.hitAttributes(this.ray, this.t, this);
+        this.ray = null;
+
+        // the front face stays the same, dot(d, n) doesn't change with the direction and the normal
+        if (this.transform != null) {
+            this.transform.toWorldPoint(this.p, this.p);
+            this.transform.toWorldNormal(this.normal, this.normal);
+            this.transform = null;
+        }
     }
 
     public void setFaceNormal(Ray r, Vec3 outwardNormal) {
-        this.frontFace = Vec3.dot(r.getDirection(), outwardNormal) < 0;
-        this.normal = this.frontFace ? outwardNormal : outwardNormal.negate();
+        setFaceNormal(r, outwardNormal.x(), outwardNormal.y(), outwardNormal.z());
+    }
+
+    public void setFaceNormal(Ray r, double x, double y, double z) {
+        Vec3 d = r.getDirection();
+        this.frontFace = d.x() * x + d.y() * y + d.z() * z < 0;
+        if (this.frontFace) {
+            this.normal.set(x, y, z);
+        } else {
+            this.normal.set(-x, -y, -z);
+        }
     }
 
     // setters
     public void set(HitRecord hitRecord) { // complete setter UPDATE WHEN NEW FIELD IS ADDED
-        this.p = hitRecord.getP();
-        this.normal = hitRecord.getNormal();
+        this.object = hitRecord.object;
+        this.ray = hitRecord.ray;
+        this.transform = hitRecord.transform;
+        this.t = hitRecord.t;
+        if (hitRecord.ray == hitRecord.objectRay) {
+            this.objectRay.setOrigin(hitRecord.objectRay.getOrigin());
+            this.objectRay.setDirection(hitRecord.objectRay.getDirection());
+            this.objectRay.setTime(hitRecord.objectRay.getTime());
+            this.ray = this.objectRay;
+        }
+        if (this.object != null) return; // attributes not computed yet, this record will compute them itself
+
+        this.p.set(hitRecord.getP());
+        this.normal.set(hitRecord.getNormal());
         this.material = hitRecord.getMaterial();
         this.t = hitRecord.getT();
         this.u = hitRecord.getU();
@@ -38,11 +123,23 @@ public class HitRecord {
         this.frontFace = hitRecord.isFrontFace();
     }
 
-    public void setP(Point3 p) {
-        this.p = p;
+    public void setP(Vec3 p) {
+        this.p.set(p);
+    }
+    public void setP(double x, double y, double z) {
+        this.p.set(x, y, z);
+    }
+    // p = r.at(t)
+    public void setP(Ray r, double t) {
+        Vec3 o = r.getOrigin();
+        Vec3 d = r.getDirection();
+        this.p.set(o.x() + t * d.x(), o.y() + t * d.y(), o.z() + t * d.z());
     }
     public void setNormal(Vec3 normal) {
-        this.normal = normal;
+        this.normal.set(normal);
+    }
+    public void setNormal(double x, double y, double z) {
+        this.normal.set(x, y, z);
     }
     public void setMaterial(Material material) {
         this.material = material;
@@ -61,25 +158,31 @@ public class HitRecord {
     }
 
     // getters
-    public Point3 getP() {
+    public Vec3 getP() {
+        resolve();
         return p;
     }
     public Vec3 getNormal() {
+        resolve();
         return normal;
     }
     public Material getMaterial() {
+        resolve();
         return material;
     }
     public double getT() {
         return t;
     }
     public double getU() {
+        resolve();
         return u;
     }
     public double getV() {
+        resolve();
         return v;
     }
     public boolean isFrontFace() {
+        resolve();
         return frontFace;
     }
 }
@@ -1,321 +1,149 @@
 package com.raytracing;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public interface Hittable {
     // Hittable Interface: all objects that can be hit by a ray implement this class and
     // must implement a hit method as described below
 
     boolean hit(Ray r, double tMin, double tMax, HitRecord rec);
     boolean boundingBox(double time0, double time1, AABB outputBox);
-}
-
-class Translate implements Hittable {
-    private final Hittable hittable;
-    private final Vec3 offset;
 
-    public Translate(Hittable hittable, Vec3 displacement) {
-        this.hittable = hittable;
-        this.offset = displacement;
+    // any hit between tMin and tMax, for shadow rays and other visibility tests: stops at the first hit found
+    // instead of searching for the closest one and writes no record. Objects of this package all answer it
+    // themselves, the default is only there for objects which wrap others (e.g. in the benchmarks)
+    default boolean occluded(Ray r, double tMin, double tMax) {
+        return hit(r, tMin, tMax, new HitRecord());
     }
-    @Override
-    public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        Ray movedR = new Ray(
-            Vec3.sub(r.getOrigin(), offset).toPoint3(), // r.origin - offset
-            r.getDirection(),
-            r.getTime()
-        );
-        if (!hittable.hit(movedR, tMin, tMax, rec))
-            return false;
 
-        rec.setP(Vec3.add(rec.getP(), offset).toPoint3()); // rec.p += offset
-        rec.setFaceNormal(movedR, rec.getNormal());
-
-        return true;
+    /*
+     Light sampling: objects that can be used as lights return the probability density (per solid angle)
+     of picking the given direction when sampling this object from origin, and can pick a random direction
+     from origin towards a point on themselves. Objects that can't be sampled keep the defaults.
+    */
+    default double pdfValue(Vec3 origin, Vec3 direction) {
+        return 0;
     }
 
-    @Override
-    public boolean boundingBox(double time0, double time1, AABB outputBox) {
-        if (!hittable.boundingBox(time0, time1, outputBox))
-            return false;
+    default Vec3 random(Vec3 origin) {
+        return new Vec3(1, 0, 0);
+    }
 
-        outputBox.set(new AABB(
-            Vec3.add(outputBox.getMinimum(), offset).toPoint3(), // outputBox.min += offset
-            Vec3.add(outputBox.getMaximum(), offset).toPoint3()  // outputBox.max += offset
-        ));
-        return true;
+    // adds every emissive object to the list. Transformed objects are added with their transformations
+    default void collectLights(List<Hittable> lights) {
     }
 }
 
-class RotateX implements Hittable {
-    private final Hittable hittable;
-    private final double sinTheta;
-    private final double cosTheta;
-    private final boolean hasBox;
-    private final AABB bBox;
-
-    public RotateX(Hittable hittable1, double angle) {
-        this.hittable = hittable1;
-        this.bBox = new AABB();
-
-        double radians = Utility.degToRad(angle);
-        this.sinTheta = Math.sin(radians);
-        this.cosTheta = Math.cos(radians);
-        this.hasBox = hittable.boundingBox(0, 1, bBox);
-
-        Point3 min = new Point3(Utility.Infinity, Utility.Infinity, Utility.Infinity);
-        Point3 max = new Point3(-Utility.Infinity, -Utility.Infinity, -Utility.Infinity);
-
-        for (int i = 0; i < 2; i++) {
-            for (int j = 0; j < 2; j++) {
-                for (int k = 0; k < 2; k++) {
-                    double x = i * bBox.getMaximum().x() + (1 - i) * bBox.getMinimum().x();
-                    double y = j * bBox.getMaximum().y() + (1 - j) * bBox.getMinimum().y();
-                    double z = k * bBox.getMaximum().z() + (1 - k) * bBox.getMinimum().z();
-
-                    double newY = cosTheta * y - sinTheta * z;
-                    double newZ = sinTheta * y + cosTheta * z;
-
-                    Vec3 tester = new Vec3(x, newY, newZ);
-
-                    for (int c = 0; c < 3; c++) {
-                        min.setComp(c, Math.min(min.getComp(c), tester.getComp(c))); // min[c] = min(min[c], tester[c]);
-                        max.setComp(c, Math.max(max.getComp(c), tester.getComp(c))); // max[c] = max(max[c], tester[c]);
-                    }
-                }
+class Instance implements Hittable {
+    /* an object placed in the world with a transformation (Transform): any combination of translations,
+        rotations and scalings. The object, usually a bvh, is built once in its own space and can be shared by any
+        number of instances, and a bvh over the instances (FlatBVH works with any hittables) makes the top level,
+        so many copies of an object only cost one instance each. Rays are moved into the object instead of the object into
+        the world, a hit only records the instance's transformation (HitRecord.setInstance) and its attributes are
+        computed in the object's space and moved into the world once the closest hit is known.
+     */
+    private final Hittable object;
+    private Transform transform;
+
+    // rays moved into objects, one for each instance in an instance the ray is in at the moment, per thread
+    private static final ThreadLocal<LocalRays> localRays = ThreadLocal.withInitial(LocalRays::new);
+
+    private static class LocalRays {
+        private Ray[] rays = new Ray[0];
+        private int depth = 0;
+
+        private Ray push() {
+            if (depth == rays.length) {
+                rays = Arrays.copyOf(rays, depth + 1);
+                rays[depth] = new Ray();
             }
+            return rays[depth++];
         }
-
-        this.bBox.set(new AABB(min, max));
     }
 
-    @Override
-    public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        Point3 origin = new Point3();
-        Vec3 direction = new Vec3();
-
-        origin.set(
-            r.getOrigin().x(),
-             cosTheta * r.getOrigin().y() + sinTheta * r.getOrigin().z(),
-            -sinTheta * r.getOrigin().y() + cosTheta * r.getOrigin().z()
-        );
-
-        direction.set(
-            r.getDirection().x(),
-             cosTheta * r.getDirection().y() + sinTheta * r.getDirection().z(),
-            -sinTheta * r.getDirection().y() + cosTheta * r.getDirection().z()
-        );
-
-        Ray rotatedR = new Ray(origin, direction, r.getTime());
-
-        if (!hittable.hit(rotatedR, tMin, tMax, rec))
-            return false;
-
-        Point3 p = new Point3();
-        Vec3 normal = new Vec3();
-
-        p.set(
-            rec.getP().x(),
-            cosTheta * rec.getP().y() - sinTheta * rec.getP().z(),
-            sinTheta * rec.getP().y() + cosTheta * rec.getP().z()
-        );
-        normal.set(
-            rec.getNormal().x(),
-            cosTheta * rec.getNormal().y() - sinTheta * rec.getNormal().z(),
-            sinTheta * rec.getNormal().y() + cosTheta * rec.getNormal().z()
-        );
-
-        rec.setP(p);
-        rec.setFaceNormal(rotatedR, normal);
+    public Instance(Hittable object, Transform transform) {
+        this.object = object;
+        this.transform = transform;
+    }
 
-        return true;
+    // moves the instance, e.g. for the next frame of an animation. A bvh around it needs a refit afterwards
+    public void setTransform(Transform transform) {
+        this.transform = transform;
     }
 
     @Override
-    public boolean boundingBox(double time0, double time1, AABB outputBox) {
-        outputBox.set(bBox);
-        return hasBox;
+    public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
+        LocalRays local = localRays.get();
+        Ray localR = local.push();
+        try {
+            // the direction isn't normalized, so t is the same in both spaces
+            transform.toObject(r, localR);
+            if (!object.hit(localR, tMin, tMax, rec))
+                return false;
+
+            rec.setInstance(transform);
+            return true;
+        } finally {
+            local.depth--;
+        }
     }
-}
-
-class RotateY implements Hittable {
-    private final Hittable hittable;
-    private final double sinTheta;
-    private final double cosTheta;
-    private final boolean hasBox;
-    private final AABB bBox;
-
-    public RotateY(Hittable hittable1, double angle) {
-        this.hittable = hittable1;
-        this.bBox = new AABB();
-
-        double radians = Utility.degToRad(angle);
-        this.sinTheta = Math.sin(radians);
-        this.cosTheta = Math.cos(radians);
-        this.hasBox = hittable.boundingBox(0, 1, bBox);
-
-        Point3 min = new Point3(Utility.Infinity, Utility.Infinity, Utility.Infinity);
-        Point3 max = new Point3(-Utility.Infinity, -Utility.Infinity, -Utility.Infinity);
-
-        for (int i = 0; i < 2; i++) {
-            for (int j = 0; j < 2; j++) {
-                for (int k = 0; k < 2; k++) {
-                    double x = i * bBox.getMaximum().x() + (1 - i) * bBox.getMinimum().x();
-                    double y = j * bBox.getMaximum().y() + (1 - j) * bBox.getMinimum().y();
-                    double z = k * bBox.getMaximum().z() + (1 - k) * bBox.getMinimum().z();
-
-                    double newX =  cosTheta * x + sinTheta * z;
-                    double newZ = -sinTheta * x + cosTheta * z;
 
-                    Vec3 tester = new Vec3(newX, y, newZ);
-
-                    for (int c = 0; c < 3; c++) {
-                        min.setComp(c, Math.min(min.getComp(c), tester.getComp(c))); // min[c] = min(min[c], tester[c]);
-                        max.setComp(c, Math.max(max.getComp(c), tester.getComp(c))); // max[c] = max(max[c], tester[c]);
-                    }
-                }
-            }
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        LocalRays local = localRays.get();
+        Ray localR = local.push();
+        try {
+            transform.toObject(r, localR);
+            return object.occluded(localR, tMin, tMax);
+        } finally {
+            local.depth--;
         }
-
-        this.bBox.set(new AABB(min, max));
     }
 
     @Override
-    public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        Point3 origin = new Point3();
-        Vec3 direction = new Vec3();
-
-        origin.set(
-            cosTheta * r.getOrigin().x() - sinTheta * r.getOrigin().z(),
-            r.getOrigin().y(),
-            sinTheta * r.getOrigin().x() + cosTheta * r.getOrigin().z()
-        );
-
-        direction.set(
-            cosTheta * r.getDirection().x() - sinTheta * r.getDirection().z(),
-            r.getDirection().y(),
-            sinTheta * r.getDirection().x() + cosTheta * r.getDirection().z()
-        );
-
-        Ray rotatedR = new Ray(origin, direction, r.getTime());
-
-        if (!hittable.hit(rotatedR, tMin, tMax, rec))
+    public boolean boundingBox(double time0, double time1, AABB outputBox) {
+        if (!object.boundingBox(time0, time1, outputBox))
             return false;
 
-        Point3 p = new Point3();
-        Vec3 normal = new Vec3();
-
-        p.set(
-             cosTheta * rec.getP().x() + sinTheta * rec.getP().z(),
-            rec.getP().y(),
-            -sinTheta * rec.getP().x() + cosTheta * rec.getP().z()
-        );
-
-        normal.set(
-             cosTheta * rec.getNormal().x() + sinTheta * rec.getNormal().z(),
-            rec.getNormal().y(),
-            -sinTheta * rec.getNormal().x() + cosTheta * rec.getNormal().z()
-        );
-
-        rec.setP(p);
-        rec.setFaceNormal(rotatedR, normal);
-
+        transform.toWorld(outputBox, outputBox);
         return true;
     }
 
     @Override
-    public boolean boundingBox(double time0, double time1, AABB outputBox) {
-        outputBox.set(bBox);
-        return hasBox;
-    }
-}
-
-class RotateZ implements Hittable {
-    private final Hittable hittable;
-    private final double sinTheta;
-    private final double cosTheta;
-    private final boolean hasBox;
-    private final AABB bBox;
-
-    public RotateZ(Hittable hittable1, double angle) {
-        this.hittable = hittable1;
-        this.bBox = new AABB();
-
-        double radians = Utility.degToRad(angle);
-        this.sinTheta = Math.sin(radians);
-        this.cosTheta = Math.cos(radians);
-        this.hasBox = hittable.boundingBox(0, 1, bBox);
-
-        Point3 min = new Point3(Utility.Infinity, Utility.Infinity, Utility.Infinity);
-        Point3 max = new Point3(-Utility.Infinity, -Utility.Infinity, -Utility.Infinity);
-
-        for (int i = 0; i < 2; i++) {
-            for (int j = 0; j < 2; j++) {
-                for (int k = 0; k < 2; k++) {
-                    double x = i * bBox.getMaximum().x() + (1 - i) * bBox.getMinimum().x();
-                    double y = j * bBox.getMaximum().y() + (1 - j) * bBox.getMinimum().y();
-                    double z = k * bBox.getMaximum().z() + (1 - k) * bBox.getMinimum().z();
-
-                    double newX = cosTheta * x - sinTheta * y;
-                    double newY = sinTheta * x + cosTheta * y;
-
-                    Vec3 tester = new Vec3(newX, newY, z);
-
-                    for (int c = 0; c < 3; c++) {
-                        min.setComp(c, Math.min(min.getComp(c), tester.getComp(c))); // min[c] = min(min[c], tester[c]);
-                        max.setComp(c, Math.max(max.getComp(c), tester.getComp(c))); // max[c] = max(max[c], tester[c]);
-                    }
-                }
-            }
-        }
-
-        this.bBox.set(new AABB(min, max));
+    public double pdfValue(Vec3 origin, Vec3 direction) {
+        Vec3 localOrigin = new Vec3();
+        Vec3 localDirection = new Vec3();
+        transform.toObjectPoint(origin, localOrigin);
+        transform.toObjectVector(direction, localDirection);
+
+        double pdf = object.pdfValue(localOrigin, localDirection);
+        if (transform.isRigid() || pdf == 0)
+            return pdf; // rotations and translations don't change solid angles
+
+        // scaling does: the density of directions d changes by |det L^-1| / |L^-1 d|^3 (d of unit length)
+        double stretch = localDirection.length() / direction.length();
+        return pdf * transform.inverseDeterminant() / (stretch * stretch * stretch);
     }
 
     @Override
-    public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        Point3 origin = new Point3();
-        Vec3 direction = new Vec3();
-
-        origin.set(
-             cosTheta * r.getOrigin().x() + sinTheta * r.getOrigin().y(),
-            -sinTheta * r.getOrigin().x() + cosTheta * r.getOrigin().y(),
-            r.getOrigin().z()
-        );
-
-        direction.set(
-             cosTheta * r.getDirection().x() + sinTheta * r.getDirection().y(),
-            -sinTheta * r.getDirection().x() + cosTheta * r.getDirection().y(),
-            r.getDirection().z()
-        );
-
-        Ray rotatedR = new Ray(origin, direction, r.getTime());
-
-        if (!hittable.hit(rotatedR, tMin, tMax, rec))
-            return false;
-
-        Point3 p = new Point3();
-        Vec3 normal = new Vec3();
-
-        p.set(
-            cosTheta * rec.getP().x() - sinTheta * rec.getP().y(),
-            sinTheta * rec.getP().x() + cosTheta * rec.getP().y(),
-            rec.getP().z()
-        );
-
-        normal.set(
-            cosTheta * rec.getNormal().x() - sinTheta * rec.getNormal().y(),
-            sinTheta * rec.getNormal().x() + cosTheta * rec.getNormal().y(),
-            rec.getNormal().z()
-        );
-
-        rec.setP(p);
-        rec.setFaceNormal(rotatedR, normal);
-
-        return true;
+    public Vec3 random(Vec3 origin) {
+        Vec3 localOrigin = new Vec3();
+        transform.toObjectPoint(origin, localOrigin);
+
+        // vector from origin to a point on the object, a difference of points so only L applies
+        Vec3 v = object.random(localOrigin);
+        transform.toWorldVector(v, v);
+        return v;
     }
 
     @Override
-    public boolean boundingBox(double time0, double time1, AABB outputBox) {
-        outputBox.set(bBox);
-        return hasBox;
+    public void collectLights(List<Hittable> lights) {
+        List<Hittable> inner = new ArrayList<>();
+        object.collectLights(inner);
+        for (Hittable light : inner) {
+            lights.add(new Instance(light, transform));
+        }
     }
-}
\ No newline at end of file
+}
@@ -32,25 +32,38 @@ public class HittableList implements Hittable {
     }
 
     // hit method loops through all objects and tests if they are hit by the ray.
-    // to save time it sets the closest t value to avoid searching behind already hit objects
+    // to save time it sets the closest t value to avoid searching behind already hit objects.
+    // objects only write to rec when they are hit (closer than closest), so they can all share it
     @Override
-
     public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        HitRecord tempRec = new HitRecord();
         boolean hitAnything = false;
         double closest = tMax;
 
-        for (Hittable object : this.objects) {
-            if (object.hit(r, tMin, closest, tempRec)) {
+        for (int i = 0; i < this.objects.size(); i++) {
+            if (this.objects.get(i).hit(r, tMin, closest, rec)) {
                 hitAnything = true;
-                closest = tempRec.getT();
-                rec.set(tempRec);
+                closest = rec.getT();
             }
         }
 
         return hitAnything;
     }
 
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        for (int i = 0; i < this.objects.size(); i++) {
+            if (this.objects.get(i).occluded(r, tMin, tMax)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void collectLights(List<Hittable> lights) {
+        for (Hittable object : this.objects) {
+            object.collectLights(lights);
+        }
+    }
+
     @Override
     public boolean boundingBox(double time0, double time1, AABB outputBox) {
         if (objects.isEmpty()) return false;
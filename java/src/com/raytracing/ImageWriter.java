@@ -0,0 +1,359 @@
+package com.raytracing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public abstract class ImageWriter {
+    /* binary image writers:
+        pixels go straight from the framebuffer into a direct buffer of a few rows, which is written to the file
+        through a FileChannel whenever it is full. Memory use doesn't grow with the size of the image and there
+        are no strings per pixel.
+
+        All formats have a header of fixed size and rows of fixed size, so every pixel has a known place in the
+        file. A TileStream uses that to write tiles as soon as the renderer has finished them, in whatever order
+        they come, instead of writing the whole image at the end (which would have to read the whole framebuffer
+        back in again). The tiles go into a temporary file next to the image, which only replaces the image once
+        the stream is finished, so a render which fails or gets interrupted leaves the previous image as it was.
+     */
+
+    // size of the direct buffer, at least one row always fits
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    public void write(FrameBuffer frameBuffer, Path file) throws IOException {
+        int width = frameBuffer.getWidth();
+        int height = frameBuffer.getHeight();
+        int rowBytes = rowBytes(width);
+
+        RenderEvents.ImageWrite event = new RenderEvents.ImageWrite();
+        event.begin();
+
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            writeFully(channel, ByteBuffer.wrap(header(width, height)));
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(rowBytes, BUFFER_BYTES / rowBytes * rowBytes));
+            buffer.order(byteOrder());
+
+            for (int i = 0; i < height; i++) {
+                if (buffer.remaining() < rowBytes) {
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    buffer.clear();
+                }
+
+                int y = bottomUp() ? height - 1 - i : i;
+                putRow(buffer, frameBuffer, 0, width, y);
+                while (buffer.position() % rowBytes != 0) buffer.put((byte) 0); // padding at the end of the row
+            }
+
+            buffer.flip();
+            writeFully(channel, buffer);
+
+            event.bytes = channel.size();
+        }
+
+        event.file = file.toString();
+        event.format = getClass().getSimpleName();
+        event.width = width;
+        event.height = height;
+        event.commit();
+    }
+
+    /**
+     * Creates the (temporary) file of an image and writes its header, the pixels are written tile by tile later on.
+     * @return stream to write the tiles with, has to be finished to become the image and closed in any case
+     */
+    public TileStream open(Path file, int width, int height) throws IOException {
+        return new TileStream(file, width, height);
+    }
+
+    protected abstract byte[] header(int width, int height);
+
+    protected abstract int bytesPerPixel();
+
+    protected abstract ByteOrder byteOrder();
+
+    // whether the rows are stored from the bottom of the image to the top
+    protected boolean bottomUp() {
+        return false;
+    }
+
+    // bytes of a row in the file
+    protected int rowBytes(int width) {
+        return width * bytesPerPixel();
+    }
+
+    // writes the pixel at (x, y) of the framebuffer at the current position of the buffer
+    protected abstract void putPixel(ByteBuffer buffer, FrameBuffer frameBuffer, int x, int y);
+
+    private void putRow(ByteBuffer buffer, FrameBuffer frameBuffer, int x0, int x1, int y) {
+        for (int x = x0; x < x1; x++) {
+            putPixel(buffer, frameBuffer, x, y);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // writes the rows of finished tiles to their place in the file, can be used by several threads at once
+    public class TileStream implements Renderer.TileListener, Closeable {
+        private final FileChannel channel;
+        private final Path file;
+        private final Path temp; // file the tiles are written to until the stream is finished
+        private final int width;
+        private final int height;
+        private final long headerBytes;
+        private boolean finished = false;
+
+        private TileStream(Path file, int width, int height) throws IOException {
+            this.file = file;
+            this.temp = file.resolveSibling(file.getFileName() + ".part");
+            this.channel = FileChannel.open(this.temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+            );
+            this.width = width;
+            this.height = height;
+
+            byte[] header = header(width, height);
+            this.headerBytes = header.length;
+            try {
+                writeFully(this.channel, ByteBuffer.wrap(header));
+
+                // sets the size of the file, so the padding of the rows is there even if no tile ends at the edge
+                this.channel.write(ByteBuffer.allocate(1), this.headerBytes + (long) height * rowBytes(width) - 1);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void tileDone(FrameBuffer frameBuffer, int x0, int y0, int x1, int y1) {
+            RenderEvents.ImageWrite event = new RenderEvents.ImageWrite();
+            event.begin();
+
+            ByteBuffer buffer = ByteBuffer.allocate((x1 - x0) * bytesPerPixel()).order(byteOrder());
+
+            try {
+                for (int y = y0; y < y1; y++) {
+                    buffer.clear();
+                    putRow(buffer, frameBuffer, x0, x1, y);
+                    buffer.flip();
+
+                    long row = bottomUp() ? this.height - 1 - y : y;
+                    long position = this.headerBytes + row * rowBytes(this.width) + (long) x0 * bytesPerPixel();
+                    while (buffer.hasRemaining()) {
+                        position += this.channel.write(buffer, position);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            if (event.shouldCommit()) {
+                event.file = this.file.toString();
+                event.format = ImageWriter.this.getClass().getSimpleName();
+                event.x = x0;
+                event.y = y0;
+                event.width = x1 - x0;
+                event.height = y1 - y0;
+                event.bytes = (long) (y1 - y0) * (x1 - x0) * bytesPerPixel();
+                event.commit();
+            }
+        }
+
+        // makes the written tiles the image, once all of them are there
+        public void finish() throws IOException {
+            this.channel.close();
+            Files.move(this.temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.finished = true;
+        }
+
+        // a stream which wasn't finished throws its tiles away
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+            if (!this.finished) Files.deleteIfExists(this.temp);
+        }
+    }
+}
+
+class PPMWriter extends ImageWriter {
+    // binary PPM (P6): 8 bit RGB, tone mapped like the BMP output
+    private final ToneMapper toneMapper;
+
+    public PPMWriter(ToneMapper toneMapper) {
+        this.toneMapper = toneMapper;
+    }
+
+    @Override
+    protected byte[] header(int width, int height) {
+        return String.format("P6\n%d %d\n255\n", width, height).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    protected int bytesPerPixel() {
+        return 3;
+    }
+
+    @Override
+    protected ByteOrder byteOrder() {
+        return ByteOrder.BIG_ENDIAN;
+    }
+
+    @Override
+    protected void putPixel(ByteBuffer buffer, FrameBuffer frameBuffer, int x, int y) {
+        int rgb = this.toneMapper.toRGB(frameBuffer.getColor(x, y), frameBuffer.getSamples(x, y));
+        buffer.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+    }
+}
+
+class PFMWriter extends ImageWriter {
+    /*
+     portable float map: linear 32 bit floats per channel, no gamma and no clamping, so the full range of the
+     render is kept for later tone mapping. A negative scale in the header means little endian, rows are stored
+     from the bottom of the image to the top.
+    */
+
+    @Override
+    protected boolean bottomUp() {
+        return true;
+    }
+
+    @Override
+    protected byte[] header(int width, int height) {
+        return String.format("PF\n%d %d\n-1.0\n", width, height).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    protected int bytesPerPixel() {
+        return 3 * Float.BYTES;
+    }
+
+    @Override
+    protected ByteOrder byteOrder() {
+        return ByteOrder.LITTLE_ENDIAN;
+    }
+
+    @Override
+    protected void putPixel(ByteBuffer buffer, FrameBuffer frameBuffer, int x, int y) {
+        Color sum = frameBuffer.getColor(x, y);
+        int samples = frameBuffer.getSamples(x, y);
+        double scale = (samples > 0) ? 1.0 / samples : 0;
+
+        buffer.putFloat((float) (sum.x() * scale));
+        buffer.putFloat((float) (sum.y() * scale));
+        buffer.putFloat((float) (sum.z() * scale));
+    }
+}
+
+class HDRWriter extends ImageWriter {
+    /*
+     Radiance RGBE (.hdr): linear colors with a shared exponent, 8 bit mantissa per channel and one exponent byte
+     (value = mantissa / 256 * 2^(exponent - 128)). Scanlines are written flat, without run length encoding,
+     which every reader of the format understands.
+    */
+
+    @Override
+    protected byte[] header(int width, int height) {
+        return String.format("#?RADIANCE\nFORMAT=32-bit_rle_rgbe\n\n-Y %d +X %d\n", height, width)
+            .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    protected int bytesPerPixel() {
+        return 4;
+    }
+
+    @Override
+    protected ByteOrder byteOrder() {
+        return ByteOrder.BIG_ENDIAN;
+    }
+
+    @Override
+    protected void putPixel(ByteBuffer buffer, FrameBuffer frameBuffer, int x, int y) {
+        Color sum = frameBuffer.getColor(x, y);
+        int samples = frameBuffer.getSamples(x, y);
+        double scale = (samples > 0) ? 1.0 / samples : 0;
+        double r = Math.max(0, sum.x() * scale);
+        double g = Math.max(0, sum.y() * scale);
+        double b = Math.max(0, sum.z() * scale);
+
+        double max = Math.max(r, Math.max(g, b));
+        if (max < 1e-32) {
+            buffer.putInt(0);
+            return;
+        }
+
+        // max = m * 2^e with m in [0.5, 1), the mantissas are scaled so that max becomes m * 256
+        int e = Math.getExponent(max) + 1;
+        double m = Math.scalb(256.0, -e);
+        buffer.put((byte) (r * m)).put((byte) (g * m)).put((byte) (b * m)).put((byte) (e + 128));
+    }
+}
+
+class BMPWriter extends ImageWriter {
+    /*
+     24 bit BMP, tone mapped like the PPM output: a 54 byte header, rows stored from the bottom of the image to
+     the top as blue, green, red and padded to a multiple of 4 bytes. Same bytes as ImageIO writes for a
+     TYPE_INT_RGB image, but without the whole image in memory. The sizes in the header are 32 bit, so images
+     have to stay below 4 GB.
+    */
+    private static final int HEADER_BYTES = 54;
+
+    private final ToneMapper toneMapper;
+
+    public BMPWriter(ToneMapper toneMapper) {
+        this.toneMapper = toneMapper;
+    }
+
+    @Override
+    protected byte[] header(int width, int height) {
+        int imageBytes = height * rowBytes(width);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'B').put((byte) 'M').putInt(HEADER_BYTES + imageBytes).putInt(0).putInt(HEADER_BYTES);
+        header.putInt(40).putInt(width).putInt(height).putShort((short) 1).putShort((short) 24); // info header
+        header.putInt(0).putInt(imageBytes).putInt(0).putInt(0).putInt(0).putInt(0); // no compression or palette
+        return header.array();
+    }
+
+    @Override
+    protected int bytesPerPixel() {
+        return 3;
+    }
+
+    @Override
+    protected ByteOrder byteOrder() {
+        return ByteOrder.LITTLE_ENDIAN;
+    }
+
+    @Override
+    protected boolean bottomUp() {
+        return true;
+    }
+
+    @Override
+    protected int rowBytes(int width) {
+        return (3 * width + 3) & ~3;
+    }
+
+    @Override
+    protected void putPixel(ByteBuffer buffer, FrameBuffer frameBuffer, int x, int y) {
+        int rgb = this.toneMapper.toRGB(frameBuffer.getColor(x, y), frameBuffer.getSamples(x, y));
+        buffer.put((byte) rgb).put((byte) (rgb >> 8)).put((byte) (rgb >> 16));
+    }
+}
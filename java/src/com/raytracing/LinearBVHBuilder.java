@@ -0,0 +1,377 @@
+package com.raytracing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+class LinearBVHBuilder {
+    /* linear bounding volume hierarchy (LBVH) builder, for lists too big for BVHBuilder to build quickly:
+        the centroids of the primitives are put on a 2^21 grid inside their bounding box and the coordinates are
+        interleaved into 63 bit Morton codes, so sorting by code orders the primitives along a Z-order curve and
+        primitives close in the order are close in space. After a radix sort the tree follows from the codes
+        alone: every node splits its range where the highest differing bit changes, and that split can be found
+        for each node on its own with binary searches (Karras, "Maximizing Parallelism in the Construction of
+        BVHs, Octrees, and k-d Trees", 2012). Bounds, codes, sort passes, splits and the nodes themselves are all
+        computed in parallel on the common fork/join pool, the build is O(n) apart from the sort passes.
+
+        The splits only depend on the grid, not on how big the primitives are or how empty the space between
+        them is. The levels at the top matter most for traversal, so optionally the subtrees sahLevels below the
+        root are taken as clusters and the levels above them are rebuilt with BVHBuilder's SAH (like HLBVH).
+     */
+
+    public static final int DEFAULT_SAH_LEVELS = 10; // up to 1024 clusters below the SAH levels
+
+    // version of the trees this builder makes, part of the BVHCache keys (like BVHBuilder.VERSION)
+    static final int VERSION = 1;
+
+    private static final int GRID_BITS = 21;     // bits per axis, 3 * 21 = 63 bits per code
+    private static final int RADIX_BITS = 11;    // bits sorted per pass, 6 passes for 63 bits
+    private static final int PARALLEL_GRAIN = 1 << 14; // primitives below which work isn't split any further
+
+    private final Hittable[] primitives;
+    private final double[] bounds; // 6 values per primitive: min x, y, z, max x, y, z
+    private final int n;
+    private final int maxLeafSize;
+    private final int chunks;      // number of parallel chunks of the per primitive steps
+
+    private long[] codes;  // Morton codes, sorted
+    private int[] order;   // primitive indices sorted by code
+    private int[] splits;  // split of every interior node: its left child ends at splits[i]
+    private final AtomicInteger nodeCount = new AtomicInteger();
+    private BVHBuilder.Node root;
+
+    LinearBVHBuilder(List<Hittable> objects, double time0, double time1, int maxLeafSize, int sahLevels) {
+        this.primitives = objects.toArray(new Hittable[0]);
+        this.n = this.primitives.length;
+        this.bounds = new double[this.n * 6];
+        this.maxLeafSize = Math.max(1, maxLeafSize);
+        this.chunks = Math.max(1, Math.min(
+            4 * ForkJoinPool.getCommonPoolParallelism(), (this.n + PARALLEL_GRAIN - 1) / PARALLEL_GRAIN
+        ));
+
+        computeBounds(time0, time1);
+        computeCodes();
+        sort();
+        computeSplits();
+        this.root = (this.n > 0) ? new Subtree(0, this.n - 1, 0).invoke() : null;
+        if (sahLevels > 0 && this.root != null) refineTop(sahLevels);
+    }
+
+    Hittable[] getPrimitives() {
+        return this.primitives;
+    }
+
+    int[] getOrder() {
+        return this.order;
+    }
+
+    BVHBuilder.Node getRoot() {
+        return this.root;
+    }
+
+    int getNodeCount() {
+        return this.nodeCount.get();
+    }
+
+    // runs body(chunk, start, end) for ranges of primitives covering all of them, in parallel
+    private void forChunks(ChunkBody body) {
+        IntStream.range(0, this.chunks).parallel().forEach(
+            c -> body.run(c, (int) ((long) this.n * c / this.chunks), (int) ((long) this.n * (c + 1) / this.chunks))
+        );
+    }
+
+    private interface ChunkBody {
+        void run(int chunk, int start, int end);
+    }
+
+    // ---------------------------------------------------------------------------------------------------- codes
+
+    private void computeBounds(double time0, double time1) {
+        forChunks((chunk, start, end) -> {
+            AABB box = new AABB();
+            for (int i = start; i < end; i++) {
+                if (!this.primitives[i].boundingBox(time0, time1, box))
+                    System.err.println("No bounding box in BVHNode constructor");
+
+                for (int a = 0; a < 3; a++) {
+                    this.bounds[6 * i + a] = box.getMinimum().getComp(a);
+                    this.bounds[6 * i + 3 + a] = box.getMaximum().getComp(a);
+                }
+            }
+        });
+    }
+
+    private void computeCodes() {
+        // bounding box of the centroids, every chunk finds its own first
+        double[][] chunkBounds = new double[this.chunks][];
+        forChunks((chunk, start, end) -> {
+            double[] box = {
+                Utility.Infinity, Utility.Infinity, Utility.Infinity,
+                -Utility.Infinity, -Utility.Infinity, -Utility.Infinity
+            };
+            for (int i = start; i < end; i++) {
+                for (int a = 0; a < 3; a++) {
+                    double centroid = centroid(i, a);
+                    box[a] = Math.min(box[a], centroid);
+                    box[3 + a] = Math.max(box[3 + a], centroid);
+                }
+            }
+            chunkBounds[chunk] = box;
+        });
+
+        double[] min = {Utility.Infinity, Utility.Infinity, Utility.Infinity};
+        double[] scale = new double[3];
+        for (int a = 0; a < 3; a++) {
+            double max = -Utility.Infinity;
+            for (double[] box : chunkBounds) {
+                min[a] = Math.min(min[a], box[a]);
+                max = Math.max(max, box[3 + a]);
+            }
+            scale[a] = (max > min[a]) ? (1 << GRID_BITS) / (max - min[a]) : 0;
+        }
+
+        this.codes = new long[this.n];
+        this.order = new int[this.n];
+        forChunks((chunk, start, end) -> {
+            for (int i = start; i < end; i++) {
+                long code = 0;
+                for (int a = 0; a < 3; a++) {
+                    long cell = (long) ((centroid(i, a) - min[a]) * scale[a]);
+                    cell = Math.min(Math.max(cell, 0), (1 << GRID_BITS) - 1);
+                    code |= spreadBits(cell) << (2 - a); // x y z x y z ... from the highest bit down
+                }
+                this.codes[i] = code;
+                this.order[i] = i;
+            }
+        });
+    }
+
+    private double centroid(int primitive, int axis) {
+        return 0.5 * (this.bounds[6 * primitive + axis] + this.bounds[6 * primitive + 3 + axis]);
+    }
+
+    // moves the lowest 21 bits of v to every third bit: b20 ... b1 b0 -> b20 0 0 ... 0 0 b1 0 0 b0
+    private static long spreadBits(long v) {
+        v &= 0x1fffffL;
+        v = (v | v << 32) & 0x1f00000000ffffL;
+        v = (v | v << 16) & 0x1f0000ff0000ffL;
+        v = (v | v << 8) & 0x100f00f00f00f00fL;
+        v = (v | v << 4) & 0x10c30c30c30c30c3L;
+        v = (v | v << 2) & 0x1249249249249249L;
+        return v;
+    }
+
+    // ----------------------------------------------------------------------------------------------------- sort
+
+    // least significant digit radix sort of the codes (and the order with them). Every chunk counts its digits,
+    // the counts give each chunk its own place for every digit, so the chunks can move their codes in parallel
+    private void sort() {
+        int buckets = 1 << RADIX_BITS;
+        long[][] codes = {this.codes, new long[this.n]};
+        int[][] order = {this.order, new int[this.n]};
+        int[][] offsets = new int[this.chunks][buckets]; // first free place of every digit for every chunk
+        int from = 0;
+
+        for (int shift = 0; shift < 3 * GRID_BITS; shift += RADIX_BITS) {
+            int digitShift = shift;
+            long[] codesIn = codes[from], codesOut = codes[1 - from];
+            int[] orderIn = order[from], orderOut = order[1 - from];
+
+            forChunks((chunk, start, end) -> {
+                int[] count = offsets[chunk];
+                Arrays.fill(count, 0);
+                for (int i = start; i < end; i++) {
+                    count[(int) (codesIn[i] >>> digitShift) & (buckets - 1)]++;
+                }
+            });
+
+            // digit by digit, chunk by chunk, so equal digits keep their order and the sort stays stable
+            int offset = 0;
+            boolean allSame = false;
+            for (int d = 0; d < buckets; d++) {
+                int digitCount = 0;
+                for (int c = 0; c < this.chunks; c++) {
+                    int count = offsets[c][d];
+                    offsets[c][d] = offset;
+                    offset += count;
+                    digitCount += count;
+                }
+                allSame |= digitCount == this.n;
+            }
+            if (allSame) continue; // every code has the same digit here, nothing would move
+
+            forChunks((chunk, start, end) -> {
+                int[] next = offsets[chunk];
+                for (int i = start; i < end; i++) {
+                    int to = next[(int) (codesIn[i] >>> digitShift) & (buckets - 1)]++;
+                    codesOut[to] = codesIn[i];
+                    orderOut[to] = orderIn[i];
+                }
+            });
+            from = 1 - from;
+        }
+
+        this.codes = codes[from];
+        this.order = order[from];
+    }
+
+    // ----------------------------------------------------------------------------------------------------- tree
+
+    /*
+     The interior nodes are numbered like in the paper: node i covers a range of sorted primitives which starts
+     or ends at i, node 0 covers all of them. The other end of the range is found by a binary search for how far
+     the common prefix with i stays longer than the one with the neighbour on the other side, and the split by
+     a binary search for where the prefix of the whole range ends. The children covering [first, split] and
+     [split + 1, last] are the nodes split and split + 1.
+    */
+    private void computeSplits() {
+        this.splits = new int[Math.max(this.n - 1, 0)];
+        forChunks((chunk, start, end) -> {
+            for (int i = start; i < Math.min(end, this.n - 1); i++) {
+                this.splits[i] = split(i);
+            }
+        });
+    }
+
+    private int split(int i) {
+        int d = (commonPrefix(i, i + 1) - commonPrefix(i, i - 1) > 0) ? 1 : -1;
+
+        // other end of the range: double the step while the prefix stays longer, then binary search
+        int minPrefix = commonPrefix(i, i - d);
+        int maxLength = 2;
+        while (commonPrefix(i, i + maxLength * d) > minPrefix) {
+            maxLength *= 2;
+        }
+        int length = 0;
+        for (int step = maxLength / 2; step >= 1; step /= 2) {
+            if (commonPrefix(i, i + (length + step) * d) > minPrefix) length += step;
+        }
+        int j = i + length * d;
+
+        // split: the last primitive sharing more than the prefix of the whole range with i
+        int nodePrefix = commonPrefix(i, j);
+        int s = 0;
+        int step = length;
+        do {
+            step = (step + 1) / 2;
+            if (commonPrefix(i, i + (s + step) * d) > nodePrefix) s += step;
+        } while (step > 1);
+
+        return i + s * d + Math.min(d, 0);
+    }
+
+    // length of the common prefix of the codes of sorted primitives i and j, -1 for j outside of the list.
+    // Equal codes are told apart by their position, so every code is unique
+    private int commonPrefix(int i, int j) {
+        if (j < 0 || j >= this.n) return -1;
+        long diff = this.codes[i] ^ this.codes[j];
+        return (diff != 0) ? Long.numberOfLeadingZeros(diff) : 64 + Integer.numberOfLeadingZeros(i ^ j);
+    }
+
+    // builds the nodes of a range [first, last] of sorted primitives, forking for big ranges.
+    // Ranges up to the leaf size become leaves, the bounds are merged on the way back up
+    @SuppressWarnings("serial")
+    private class Subtree extends RecursiveTask<BVHBuilder.Node> {
+        private final int first;
+        private final int last;
+        private final int index; // interior node of the range
+
+        Subtree(int first, int last, int index) {
+            this.first = first;
+            this.last = last;
+            this.index = index;
+        }
+
+        @Override
+        protected BVHBuilder.Node compute() {
+            int[] nodes = {0};
+            BVHBuilder.Node node = build(this.first, this.last, this.index, nodes);
+            nodeCount.addAndGet(nodes[0]);
+            return node;
+        }
+
+        private BVHBuilder.Node build(int first, int last, int index, int[] nodes) {
+            int count = last - first + 1;
+            BVHBuilder.Node node = new BVHBuilder.Node(first, count);
+            nodes[0]++;
+
+            if (count <= maxLeafSize) {
+                for (int i = first; i <= last; i++) {
+                    int p = order[i];
+                    for (int a = 0; a < 3; a++) {
+                        node.bounds[a] = Math.min(node.bounds[a], bounds[6 * p + a]);
+                        node.bounds[3 + a] = Math.max(node.bounds[3 + a], bounds[6 * p + 3 + a]);
+                    }
+                }
+                return node;
+            }
+
+            int split = splits[index];
+            if (count > PARALLEL_GRAIN) {
+                Subtree left = new Subtree(first, split, split);
+                left.fork();
+                node.right = new Subtree(split + 1, last, split + 1).compute();
+                node.left = left.join();
+            } else {
+                node.left = build(first, split, split, nodes);
+                node.right = build(split + 1, last, split + 1, nodes);
+            }
+
+            for (int a = 0; a < 3; a++) {
+                node.bounds[a] = Math.min(node.left.bounds[a], node.right.bounds[a]);
+                node.bounds[3 + a] = Math.max(node.left.bounds[3 + a], node.right.bounds[3 + a]);
+            }
+            node.count = 0;
+            node.axis = splitAxis(first, last);
+            return node;
+        }
+    }
+
+    // axis of the highest bit in which the codes of the range differ, the one the node is split along
+    private int splitAxis(int first, int last) {
+        long diff = this.codes[first] ^ this.codes[last];
+        if (diff == 0) return 0;
+        int bit = 63 - Long.numberOfLeadingZeros(diff);
+        return 2 - bit % 3;
+    }
+
+    // ------------------------------------------------------------------------------------------------- SAH top
+
+    // replaces the levels above the subtrees sahLevels below the root by a tree built with the SAH over the
+    // boxes of those subtrees. Both have one interior node less than there are subtrees, the node count stays
+    private void refineTop(int sahLevels) {
+        List<BVHBuilder.Node> clusters = new ArrayList<>();
+        collectClusters(this.root, sahLevels, clusters);
+        if (clusters.size() < 3) return;
+
+        double[] clusterBounds = new double[clusters.size() * 6];
+        for (int c = 0; c < clusters.size(); c++) {
+            System.arraycopy(clusters.get(c).bounds, 0, clusterBounds, 6 * c, 6);
+        }
+
+        BVHBuilder top = new BVHBuilder(clusterBounds, 1);
+        this.root = attachClusters(top.getRoot(), top.getOrder(), clusters);
+    }
+
+    private static void collectClusters(BVHBuilder.Node node, int levels, List<BVHBuilder.Node> clusters) {
+        if (levels == 0 || node.isLeaf()) {
+            clusters.add(node);
+            return;
+        }
+        collectClusters(node.left, levels - 1, clusters);
+        collectClusters(node.right, levels - 1, clusters);
+    }
+
+    private static BVHBuilder.Node attachClusters(BVHBuilder.Node node, int[] order, List<BVHBuilder.Node> clusters) {
+        if (node.isLeaf())
+            return clusters.get(order[node.start]);
+
+        node.left = attachClusters(node.left, order, clusters);
+        node.right = attachClusters(node.right, order, clusters);
+        return node;
+    }
+}
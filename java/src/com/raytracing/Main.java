@@ -3,10 +3,11 @@ package com.raytracing;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Scanner;
 
 public class Main {
@@ -15,29 +16,87 @@ public class Main {
     private static final boolean DEV = true;
 
     // output image format, one of the values of the following enum:
-    private enum FileType {PPM, BMP}
+    private enum FileType {PPM, PFM, HDR, BMP}
 
     private static final FileType OUTPUT_FILE_TYPE = FileType.BMP;
 
+    // post-processing of the 8 bit formats (PPM, BMP): exposure in stops, tone mapping curve and gamma.
+    // PFM and HDR keep the linear colors, they can be graded later on with the Grade tool.
+    private static final double EXPOSURE = 0;
+    private static final ToneMapper.Operator TONE_MAPPING = ToneMapper.Operator.CLAMP;
+    private static final double GAMMA = 2;
+    private static final ToneMapper TONE_MAPPER = new ToneMapper(EXPOSURE, TONE_MAPPING, GAMMA);
+
+    // render engine: number of threads (0 => all cores), size of the square tiles and the order of the tiles
+    private static final int THREADS = 0;
+    private static final int TILE_SIZE = 32;
+    private static final Renderer.TileOrder TILE_ORDER = Renderer.TileOrder.HILBERT;
+
+    // how direct light is found (see PathTracer) and how bsdf and light samples are weighted in MIS mode
+    private static final PathTracer.LightSampling LIGHT_SAMPLING = PathTracer.LightSampling.MIS;
+    private static final PathTracer.Heuristic MIS_HEURISTIC = PathTracer.Heuristic.POWER;
+
+    // adaptive sampling: relative error at which a pixel has enough samples (0 => off), samples every pixel gets
+    // first and the limit for a single pixel as a multiple of samplesPerPixel. Where the samples went is written
+    // to a heatmap next to the image.
+    private static final double ADAPTIVE_THRESHOLD = 0;
+    private static final int ADAPTIVE_MIN_SAMPLES = 16;
+    private static final int ADAPTIVE_MAX_FACTOR = 8;
+
+    // progressive rendering: samples per pixel of each pass over the image (0 => off). Between passes the image
+    // rendered so far is written to the output file, at most once per interval (0 => after every pass).
+    private static final int PROGRESSIVE_SAMPLES_PER_PASS = 0;
+    private static final int SNAPSHOT_INTERVAL_SECONDS = 10;
+
+    // checkpoints: keep the framebuffer in a memory-mapped file, so that a render which got interrupted can be
+    // continued by starting the program again with the argument --resume (same scene, the size and samples per
+    // pixel are taken from the checkpoint). Only the tiles in use are kept in memory, so this is also the way to
+    // render images which don't fit into the memory.
+    private static final boolean CHECKPOINT = false;
+    private static final String CHECKPOINT_FILE = "render.checkpoint";
+
+    // statistics (rays per bounce, bvh nodes visited, primitive tests, ...) and a heatmap of the traversal cost
+    // per sample are only collected when running with -Draytracing.stats=true, see Stats
+    private static final String TRAVERSAL_HEATMAP_FILE = "traversal.bmp";
+
+    // bvh cache: keep built FlatBVHs in a directory, so starting the same scene again loads its trees instead of
+    // building them. The files can be deleted at any time, see BVHCache
+    private static final boolean BVH_CACHE = false;
+    private static final String BVH_CACHE_DIRECTORY = "bvhcache";
+
     public static void main(String[] args) {
         Instant start = Instant.now();
 
         Scanner bob = new Scanner(System.in);
 
-        // image properties
-        double aspectRatio = (double) 16 / 9;
+        FrameBuffer checkpoint = null;
+        if (Arrays.asList(args).contains("--resume")) {
+            try {
+                checkpoint = FrameBuffer.open(Path.of(CHECKPOINT_FILE));
+            } catch (IOException e) {
+                System.out.printf("Error while opening checkpoint '%s': %s\n", CHECKPOINT_FILE, e.getMessage());
+                return;
+            }
+        }
+
+        if (BVH_CACHE) BVHCache.setDirectory(Path.of(BVH_CACHE_DIRECTORY));
 
+        // scene, see Scenes.scene() for the numbers
+        final int sceneNumber = 5;
+        Scene scene = Scenes.scene(sceneNumber);
+
+        // image properties
         int imageWidth;
-        if (DEV) {
-            imageWidth = 500;
+        if (DEV || checkpoint != null) {
+            imageWidth = scene.getDevImageWidth();
         } else {
             System.out.print("Image Width: ");
             imageWidth = bob.nextInt();
         }
 
         int samplesPerPixel;
-        if (DEV) {
-            samplesPerPixel = 10;
+        if (DEV || checkpoint != null) {
+            samplesPerPixel = scene.getDevSamplesPerPixel();
         } else {
             System.out.print("Samples per Pixel: ");
             samplesPerPixel = bob.nextInt();
@@ -45,206 +104,88 @@ public class Main {
 
         final int maxDepth = 100;
 
-        // world
-        HittableList world = new HittableList();
-
-        // camera
-        Point3 lookFrom;
-        Point3 lookAt;
-        int vFOV;
-        double aperture = 0;
-        Color background = Utility.hexToColor("#bce5f5");
-
-        final int scene = 5;
-        switch (scene) {
-            case 1: // --------------------------------------------------------- small Spheres
-                world.add(Scenes.smallSpheres());
-                lookFrom = new Point3(13, 2.2, 4);
-                lookAt = new Point3(0, 0.4, 0);
-                vFOV = 20;
-                break;
-
-            case 2: // --------------------------------------------------------- checkered Spheres
-                world.add(Scenes.checkeredSpheres());
-                lookFrom = new Point3(0, 0, 20);
-                lookAt = new Point3(0, 0, 0);
-                vFOV = 30;
-                break;
-
-            case 3: // --------------------------------------------------------- perlin Spheres
-                world.add(Scenes.perlinSpheres());
-                lookFrom = new Point3(4, 4, 10);
-                lookAt = new Point3(0, 1.8, -2.5);
-                vFOV = 40;
-                break;
-
-            case 4: // --------------------------------------------------------- earth & moon
-                world.add(Scenes.earth());
-                lookFrom = new Point3(5, 2, -1);
-                lookAt = new Point3(0, 0, -1.5);
-                vFOV = 60;
-                break;
-
-            case 5: // --------------------------------------------------------- lights
-                if (DEV) samplesPerPixel = 75;
-                background.set(new Color());
-
-                world.add(Scenes.lights());
-                lookFrom = new Point3(20, 4, 5);
-                lookAt = new Point3(0, 2, -.7);
-                vFOV = 20;
-                break;
-
-            case 6: // --------------------------------------------------------- cornell box
-                if (DEV) samplesPerPixel = 30;
-                background.set(new Color());
-                aspectRatio = 1;
-
-                world.add(Scenes.cornellBox());
-                lookFrom = new Point3(250, 250, 1200);
-                lookAt = new Point3(250, 250, 0);
-                vFOV = 40;
-                break;
-
-            case 7: // --------------------------------------------------------- cornell box smoke
-                if (DEV) samplesPerPixel = 75;
-                background.set(new Color());
-                aspectRatio = 1;
-
-                world.add(Scenes.cornellBoxSmoke());
-                lookFrom = new Point3(250, 250, 1200);
-                lookAt = new Point3(250, 250, 0);
-                vFOV = 40;
-                break;
-
-            case 8: // --------------------------------------------------------- final scene for book 2
-                if (DEV) {
-                    samplesPerPixel = 15;
-                    imageWidth = 600;
-                }
-                background.set(new Color());
-
-                world.add(Scenes.finalScene());
-                lookFrom = new Point3(700, 160, 900);
-                lookAt = new Point3(150, 140, 0);
-                vFOV = 50;
-                aperture = .7;
-                break;
-
-            case 20: // --------------------------------------------------------- spheres inside box
-                if (DEV) samplesPerPixel = 100;
-                background.set(new Color());
-
-                world.add(Scenes.insideBox());
-                lookFrom = new Point3(8, 1.8, 2.5);
-                lookAt = new Point3(0, 0.4, 0);
-                vFOV = 45;
-                aperture = 10;
-                break;
-
-            case 21: // --------------------------------------------------------- all rotations
-                if (DEV) samplesPerPixel = 75;
-                background.set(new Color());
-
-                world.add(Scenes.rotations());
-                lookFrom = new Point3(0, 5.8, 10);
-                lookAt = new Point3(0, 3.5, 0);
-                vFOV = 60;
-                break;
-
-            case 22: // --------------------------------------------------------- bokeh
-                if (DEV) samplesPerPixel = 75;
-                background.set(new Color());
-
-                world.add(Scenes.bokeh());
-                lookFrom = new Point3(0, 1.5, 40);
-                lookAt = new Point3(0, 1.3, 35);
-
-                vFOV = 40;
-                aperture = 0.3;
-                break;
-
-
-            default: // --------------------------------------------------------- default scene
-                world.add(Scenes.standardScene());
-                lookFrom = new Point3(13, 2.2, 4);
-                lookAt = new Point3(0, 0.4, 0);
-                vFOV = 20;
-                aperture = 0.1;
-                break;
+        if (checkpoint != null) {
+            imageWidth = checkpoint.getWidth();
+            samplesPerPixel = checkpoint.getSamplesPerPixel();
         }
 
-        final int imageHeight = (int) (imageWidth / aspectRatio);
+        final int imageHeight = scene.imageHeight(imageWidth);
 
-        Vec3 viewUp = new Vec3(0, 1, 0); // horizontally level view
-        double distToFocus = Vec3.sub(lookFrom, lookAt).length();
+        if (checkpoint != null && checkpoint.getHeight() != imageHeight) {
+            System.out.printf("Checkpoint '%s' belongs to a different scene.\n", CHECKPOINT_FILE);
+            return;
+        }
 
-        Camera cam = new Camera(
-            lookFrom, lookAt, viewUp, vFOV, aspectRatio, aperture, distToFocus, 0, 1
-        );
+        Camera cam = scene.camera();
 
         String fileName = switch (OUTPUT_FILE_TYPE) {
             case PPM -> "output.ppm";
+            case PFM -> "output.pfm";
+            case HDR -> "output.hdr";
             case BMP -> "output.bmp";
         };
 
-        try (FileWriter writer = new FileWriter(fileName)) {
-
-            switch (OUTPUT_FILE_TYPE) {
-                case PPM -> {
-                    StringBuilder output = new StringBuilder();
-                    output.append(String.format("P3\n%d %d\n255\n", imageWidth, imageHeight)); // header of file
-
-                    for (int j = imageHeight - 1; j >= 0; j--) {
-                        // progress
-                        System.out.print("\rScanlines remaining: " + j + " of " + imageHeight + " --- " +
-                            (int) (((double) (imageHeight - j) / imageHeight) * 100) + "% completed");
-                        System.out.flush();
-
-                        for (int i = 0; i < imageWidth; i++) {
-                            Color pixelColor = new Color(0, 0, 0);
-                            // multiple samples per pixel
-                            for (int s = 0; s < samplesPerPixel; s++) {
-                                double u = (i + Utility.randomDouble()) / (imageWidth - 1);
-                                double v = (j + Utility.randomDouble()) / (imageHeight - 1);
-                                Ray r = cam.getRay(u, v);
-                                pixelColor = Vec3.add(pixelColor, rayColor(r, background, world, maxDepth)).toColor();
-                            }
-                            output.append(writeColor(pixelColor, samplesPerPixel));
-                        }
-                    }
-
-                    writer.write(output.toString());
+        PathTracer tracer = new PathTracer(scene.getWorld(), scene.getBackground(), maxDepth);
+        tracer.setLightSampling(LIGHT_SAMPLING);
+        tracer.setHeuristic(MIS_HEURISTIC);
+
+        ImageWriter writer = imageWriter();
+
+        Renderer renderer = new Renderer(tracer, cam, imageWidth, imageHeight, samplesPerPixel);
+        renderer.setThreads(THREADS);
+        renderer.setTileSize(TILE_SIZE);
+        renderer.setTileOrder(TILE_ORDER);
+        renderer.setAdaptiveSampling(ADAPTIVE_THRESHOLD, ADAPTIVE_MIN_SAMPLES, ADAPTIVE_MAX_FACTOR * samplesPerPixel);
+
+        if (PROGRESSIVE_SAMPLES_PER_PASS > 0) {
+            // the snapshots overwrite the output file, so it always holds the newest state of the render
+            renderer.setProgressive(PROGRESSIVE_SAMPLES_PER_PASS, SNAPSHOT_INTERVAL_SECONDS * 1000L, snapshot -> {
+                try {
+                    writer.write(snapshot, Path.of(fileName));
+                } catch (IOException e) {
+                    System.out.printf("\nError while writing snapshot to '%s'.\n", fileName);
                 }
+            });
+        }
 
-                case BMP -> {
-                    BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
-
-                    for (int y = imageHeight - 1; y >= 0; y--) {
-                        // progress
-                        System.out.print("\rScanlines remaining: " + y + " of " + imageHeight + " --- " +
-                            (int) (((double) (imageHeight - y) / imageHeight) * 100) + "% completed");
-                        System.out.flush();
-
-                        for (int x = 0; x < imageWidth; x++) {
-                            Color pixelColor = new Color(0, 0, 0);
-
-                            // multiple samples per pixel
-                            for (int s = 0; s < samplesPerPixel; s++) {
-                                double u = (x + Utility.randomDouble()) / (imageWidth - 1);
-                                double v = (y + Utility.randomDouble()) / (imageHeight - 1);
-                                Ray r = cam.getRay(u, v);
-                                pixelColor = Vec3.add(pixelColor, rayColor(r, background, world, maxDepth)).toColor();
-                            }
-
-                            image.setRGB(x, imageHeight - (y + 1), writeColorBMP(pixelColor,
-                                samplesPerPixel));
-                        }
-                    }
-
-                    File output = new File(fileName);
-                    ImageIO.write(image, "bmp", output);
-                }
+        FrameBuffer frameBuffer;
+        if (checkpoint != null) {
+            System.out.printf("Resuming from '%s'\n", CHECKPOINT_FILE);
+            frameBuffer = checkpoint;
+        } else if (CHECKPOINT) {
+            try {
+                frameBuffer = FrameBuffer.create(
+                    Path.of(CHECKPOINT_FILE), imageWidth, imageHeight, samplesPerPixel, TILE_SIZE
+                );
+            } catch (IOException e) {
+                System.out.printf("Error while creating checkpoint '%s': %s\n", CHECKPOINT_FILE, e.getMessage());
+                return;
+            }
+        } else {
+            frameBuffer = new FrameBuffer(imageWidth, imageHeight);
+        }
+
+        // without adaptive sampling, tiles go into the output file as soon as they are finished (through a temporary
+        // file, the previous image is only replaced once the render is complete)
+        try (ImageWriter.TileStream output = (ADAPTIVE_THRESHOLD == 0)
+            ? writer.open(Path.of(fileName), imageWidth, imageHeight)
+            : null
+        ) {
+            if (output != null) renderer.setTileListener(output);
+
+            renderer.render(frameBuffer);
+
+            if (output != null) {
+                output.finish();
+            } else {
+                writer.write(frameBuffer, Path.of(fileName));
+            }
+
+            if (ADAPTIVE_THRESHOLD > 0) {
+                writeSampleHeatmap(frameBuffer, "samples.bmp");
+            }
+            if (Stats.ENABLED) {
+                writeTraversalHeatmap(frameBuffer, renderer.getTraversalCost(), TRAVERSAL_HEATMAP_FILE);
             }
 
             Instant finish = Instant.now();
@@ -266,83 +207,95 @@ public class Main {
 
             System.out.printf("\nSuccessfully wrote to '%s' in %.2f %s.", fileName, timeElapsed, timeScale);
             System.out.printf(
-                "\nWidth: %dpx | Height: %dpx | Samples per Pixel: %d\n",
-                imageWidth, imageHeight, samplesPerPixel
+                "\nWidth: %dpx | Height: %dpx | Samples per Pixel: %d | Threads: %d\n",
+                imageWidth, imageHeight, samplesPerPixel, renderer.getThreads()
             );
+            if (ADAPTIVE_THRESHOLD > 0) {
+                System.out.printf(
+                    "Adaptive sampling: %.1f samples per pixel on average, heatmap in 'samples.bmp'\n",
+                    (double) frameBuffer.getTotalSamples() / (imageWidth * imageHeight)
+                );
+            }
+            if (Stats.ENABLED) {
+                System.out.print(Stats.merge());
+                System.out.printf("Traversal cost per sample in '%s'\n", TRAVERSAL_HEATMAP_FILE);
+            }
 
         } catch (IOException e) {
-            System.out.printf("Error while writing to '%s'.\n", fileName);
+            System.out.printf("Error while writing to '%s': %s\n", fileName, e.getMessage());
         }
 
     }
 
-    // function to figure out what color the ray returns
-    public static Color rayColor(Ray r, Color background, Hittable world, int depth) {
-        HitRecord rec = new HitRecord();
-
-        // recursion safeguard
-        if (depth <= 0) {
-            return new Color(0, 0, 0); // black
-        }
-
-        // Check if ray hits anything, if not return the background color
-        if (!world.hit(r, 0.001, Utility.Infinity, rec))
-            return background;
-
-        Ray scattered = new Ray();
-        Color attenuation = new Color();
-        Color emitted = rec.getMaterial().emitted(rec.getU(), rec.getV(), rec.getP());
-
-        // if ray doesn't get scattered return emitted color
-        if (!rec.getMaterial().scatter(r, rec, attenuation, scattered))
-            return emitted;
+    // writer for the format of OUTPUT_FILE_TYPE
+    private static ImageWriter imageWriter() {
+        return switch (OUTPUT_FILE_TYPE) {
+            case PPM -> new PPMWriter(TONE_MAPPER);
+            case PFM -> new PFMWriter();
+            case HDR -> new HDRWriter();
+            case BMP -> new BMPWriter(TONE_MAPPER);
+        };
+    }
 
-        // return emitted + attenuation * ray_color(scattered, background, world, depth-1);
-        return Vec3.mul(
-            Vec3.add(emitted, attenuation),
-            rayColor(scattered, background, world, depth - 1)
-        ).toColor();
+    // writes packed RGB colors (row by row from the top) as a BMP image
+    public static void writeBMP(int[] rgb, int width, int height, String fileName) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, rgb, 0, width);
+        ImageIO.write(image, "bmp", new File(fileName));
     }
 
-    // function to generate a color String, originally in color.py
-    public static String writeColor(Color pixelColor, int samplesPerPixel) {
-        double r = pixelColor.x();
-        double g = pixelColor.y();
-        double b = pixelColor.z();
-
-        // divide the color by the number of samples and gamma correct for gamma = 2
-        // -> raising color to the power 1/gamma -> 1/2 -> sqrt
-
-        double scale = (double) 1 / samplesPerPixel;
-        r = Math.sqrt(scale * r);
-        g = Math.sqrt(scale * g);
-        b = Math.sqrt(scale * b);
-
-        // return the translated (0 to 256) value of each component
-        return String.format("%d %d %d\n",
-            (int) (256 * Utility.clamp(r, 0, 0.999)),
-            (int) (256 * Utility.clamp(g, 0, 0.999)),
-            (int) (256 * Utility.clamp(b, 0, 0.999))
-        );
+    // writes the number of samples of every pixel as a heatmap
+    public static void writeSampleHeatmap(FrameBuffer frameBuffer, String fileName) throws IOException {
+        int width = frameBuffer.getWidth();
+        double[] samples = new double[width * frameBuffer.getHeight()];
+        for (int y = 0; y < frameBuffer.getHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                samples[y * width + x] = frameBuffer.getSamples(x, y);
+            }
+        }
+
+        writeHeatmap(samples, width, frameBuffer.getHeight(), fileName);
     }
 
-    public static int writeColorBMP(Color pixelColor, int samplesPerPixel) {
-        double r = pixelColor.x();
-        double g = pixelColor.y();
-        double b = pixelColor.z();
+    // writes the traversal cost (bvh nodes visited + primitive tests, see Stats) per sample of every pixel as a heatmap,
+    // on a log scale so a few very expensive pixels don't make all others black
+    public static void writeTraversalHeatmap(FrameBuffer frameBuffer, long[] cost, String fileName)
+        throws IOException {
+        int width = frameBuffer.getWidth();
+        double[] costPerSample = new double[cost.length];
+        for (int y = 0; y < frameBuffer.getHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                costPerSample[y * width + x] =
+                    Math.log1p((double) cost[y * width + x] / Math.max(1, frameBuffer.getSamples(x, y)));
+            }
+        }
 
-        // divide the color by the number of samples and gamma correct for gamma = 2
-        // -> raising color to the power 1/gamma -> 1/2 -> sqrt
+        writeHeatmap(costPerSample, width, frameBuffer.getHeight(), fileName);
+    }
 
-        double scale = (double) 1 / samplesPerPixel;
-        r = Math.sqrt(scale * r);
-        g = Math.sqrt(scale * g);
-        b = Math.sqrt(scale * b);
+    // writes values (row by row from the top) as an image: black (smallest) over red and yellow to white (largest)
+    public static void writeHeatmap(double[] values, int width, int height, String fileName) throws IOException {
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (double value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
 
-        int rgb = (int) (256 * Utility.clamp(r, 0, 0.999));
-        rgb = (rgb << 8) | (int) (256 * Utility.clamp(g, 0, 0.999));
-        rgb = (rgb << 8) | (int) (256 * Utility.clamp(b, 0, 0.999));
+        ToneMapper toneMapper = new ToneMapper();
+        int[] rgb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double t = (max > min) ? (values[y * width + x] - min) / (max - min) : 0;
+                Color heat = new Color(
+                    Utility.clamp(3 * t, 0, 1),
+                    Utility.clamp(3 * t - 1, 0, 1),
+                    Utility.clamp(3 * t - 2, 0, 1)
+                );
+                rgb[y * width + x] = toneMapper.toRGB(heat, 1);
+            }
+        }
 
-        return rgb;
+        writeBMP(rgb, width, height, fileName);
     }
-}
\ No newline at end of file
+}
@@ -2,9 +2,28 @@ package com.raytracing;
 
 public abstract class Material {
     public abstract boolean scatter(Ray rIn, HitRecord rec, Color attenuation, Ray scattered);
-    public Color emitted(double u, double v, Point3 p) {
+    public Color emitted(double u, double v, Vec3 p) {
         return new Color(0, 0, 0);
     }
+
+    // whether objects made of this material are sampled as lights
+    public boolean isEmissive() {
+        return false;
+    }
+
+    /*
+     Materials with a scattering pdf can be combined with light sampling: for any direction, attenuation times
+     scatteringPdf is the fraction of light arriving from that direction that gets scattered into rIn.
+     Mirror-like materials (a single possible direction) have no pdf. scatter() of a material with a pdf sets
+     attenuation even when it absorbs the ray, the light sample of the hit is taken anyway.
+    */
+    public boolean hasScatteringPdf() {
+        return false;
+    }
+
+    public double scatteringPdf(Ray rIn, HitRecord rec, Ray scattered) {
+        return 0;
+    }
 }
 
 class Lambertian extends Material {
@@ -21,9 +40,9 @@ class Lambertian extends Material {
 
     @Override
     public boolean scatter(Ray rIn, HitRecord rec, Color attenuation, Ray scattered) {
-        // use either randomInUnitSphere(), randomUnitVector() or randomInHemisphere(rec.getNormal())
-        // as second parameter
-        Vec3 scatterDirection = Vec3.add(rec.getNormal(), Vec3.randomInUnitSphere());
+        // normal + random unit vector gives exactly the cosine distribution of scatteringPdf(),
+        // which light sampling relies on
+        Vec3 scatterDirection = Vec3.add(rec.getNormal(), Vec3.randomUnitVector());
 
         // catch near zero scatter direction
         if (scatterDirection.nearZero()) {
@@ -37,6 +56,18 @@ class Lambertian extends Material {
         attenuation.set(this.albedo.value(rec.getU(), rec.getV(), rec.getP()));
         return true;
     }
+
+    @Override
+    public boolean hasScatteringPdf() {
+        return true;
+    }
+
+    @Override
+    public double scatteringPdf(Ray rIn, HitRecord rec, Ray scattered) {
+        // cosine weighted hemisphere: cos(theta) / pi
+        double cosine = Vec3.dot(rec.getNormal(), Vec3.unitVector(scattered.getDirection()));
+        return (cosine < 0) ? 0 : cosine / Utility.PI;
+    }
 }
 
 class Metal extends Material {
@@ -64,6 +95,39 @@ class Metal extends Material {
         attenuation.set(this.albedo.value(rec.getU(), rec.getV(), rec.getP()));
         return (Vec3.dot(scattered.getDirection(), rec.getNormal()) > 0);
     }
+
+    // a perfect mirror only reflects into a single direction, which has no density
+    @Override
+    public boolean hasScatteringPdf() {
+        return this.fuzz > 0;
+    }
+
+    @Override
+    public double scatteringPdf(Ray rIn, HitRecord rec, Ray scattered) {
+        /*
+         scatter() picks a uniform point in a ball of radius fuzz around the tip of the (unit length) reflected
+         direction. The density of a direction is the part of the ball on that line, sum of r^2 dr from where the
+         line enters the ball (r1) to where it leaves it (r2), divided by the volume of the ball:
+         (r2^3 - r1^3) / 3 / (4/3 pi fuzz^3). Directions below the surface are absorbed.
+        */
+        Vec3 direction = Vec3.unitVector(scattered.getDirection());
+        if (Vec3.dot(direction, rec.getNormal()) <= 0)
+            return 0;
+
+        Vec3 reflected = Vec3.reflect(Vec3.unitVector(rIn.getDirection()), rec.getNormal());
+        double cosine = Vec3.dot(direction, reflected);
+        double discriminant = this.fuzz * this.fuzz - (1 - cosine * cosine);
+        if (discriminant <= 0)
+            return 0;
+
+        double root = Math.sqrt(discriminant);
+        double r1 = Math.max(0, cosine - root);
+        double r2 = cosine + root;
+        if (r2 <= 0)
+            return 0;
+
+        return (r2 * r2 * r2 - r1 * r1 * r1) / (4 * Math.PI * this.fuzz * this.fuzz * this.fuzz);
+    }
 }
 
 class Dielectric extends Material {
@@ -131,9 +195,14 @@ class DiffuseLight extends Material {
     }
 
     @Override
-    public Color emitted(double u, double v, Point3 p) {
+    public Color emitted(double u, double v, Vec3 p) {
         return emit.value(u, v, p);
     }
+
+    @Override
+    public boolean isEmissive() {
+        return true;
+    }
 }
 
 class Isotropic extends Material {
@@ -155,4 +224,15 @@ class Isotropic extends Material {
         attenuation.set(albedo.value(rec.getU(), rec.getV(), rec.getP()));
         return true;
     }
+
+    @Override
+    public boolean hasScatteringPdf() {
+        return true;
+    }
+
+    @Override
+    public double scatteringPdf(Ray rIn, HitRecord rec, Ray scattered) {
+        // uniform over the whole sphere of directions
+        return 1 / (4 * Utility.PI);
+    }
 }
\ No newline at end of file
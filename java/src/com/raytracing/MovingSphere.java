@@ -1,6 +1,6 @@
 package com.raytracing;
 
-public class MovingSphere implements Hittable {
+public class MovingSphere implements Primitive {
     private final Point3 center0, center1;
     private final double time0, time1;
     private final double radius;
@@ -17,15 +17,42 @@ public class MovingSphere implements Hittable {
 
     @Override
     public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        Vec3 oc = Vec3.sub(r.getOrigin(), center(r.getTime()));
-        double a = r.getDirection().lengthSquared();
-        double h = Vec3.dot(oc, r.getDirection());
-        double c = oc.lengthSquared() - (this.radius * this.radius);
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        double root = nearestRoot(r, tMin, tMax);
+        if (Double.isNaN(root))
+            return false;
+
+        rec.setHit(r, root, this);
+        return true;
+    }
+
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        return !Double.isNaN(nearestRoot(r, tMin, tMax));
+    }
+
+    // t of the nearest intersection between tMin and tMax, NaN if there is none
+    private double nearestRoot(Ray r, double tMin, double tMax) {
+        // center at the time of the ray and oc = origin - center, in components so nothing is allocated
+        double s = (r.getTime() - time0) / (time1 - time0);
+        double cX = center0.x() + s * (center1.x() - center0.x());
+        double cY = center0.y() + s * (center1.y() - center0.y());
+        double cZ = center0.z() + s * (center1.z() - center0.z());
+
+        Vec3 d = r.getDirection();
+        double ocX = r.getOrigin().x() - cX;
+        double ocY = r.getOrigin().y() - cY;
+        double ocZ = r.getOrigin().z() - cZ;
+
+        double a = d.lengthSquared();
+        double h = ocX * d.x() + ocY * d.y() + ocZ * d.z();
+        double c = (ocX * ocX + ocY * ocY + ocZ * ocZ) - (this.radius * this.radius);
 
         // value under sqrt, if > 0 => ray intersects
         double discriminant = (h * h) - (a * c);
         if (discriminant < 0) {
-            return false;
+            return Double.NaN;
         }
 
         double sqrtD = Math.sqrt(discriminant);
@@ -34,45 +61,52 @@ public class MovingSphere implements Hittable {
         if (root < tMin || root > tMax) {
             root = (-h + sqrtD) / a;
             if (root < tMin || root > tMax) {
-                return false; // root not in range
+                return Double.NaN; // root not in range
             }
         }
 
-        rec.setT(root);
-        rec.setP(r.at(rec.getT()));
+        return root;
+    }
+
+    @Override
+    public void hitAttributes(Ray r, double t, HitRecord rec) {
+        double s = (r.getTime() - time0) / (time1 - time0);
+        double cX = center0.x() + s * (center1.x() - center0.x());
+        double cY = center0.y() + s * (center1.y() - center0.y());
+        double cZ = center0.z() + s * (center1.z() - center0.z());
+
+        rec.setP(r, t);
         rec.setMaterial(this.material);
         // normal = (rec.p - center(r.time())) / radius
-        Vec3 outwardNormal = Vec3.div(
-            Vec3.sub(rec.getP(), center(r.getTime())),
-            radius);
-        rec.setFaceNormal(r, outwardNormal);
-
-        return true;
+        double invRadius = 1 / radius;
+        rec.setFaceNormal(r,
+            (rec.getP().x() - cX) * invRadius,
+            (rec.getP().y() - cY) * invRadius,
+            (rec.getP().z() - cZ) * invRadius);
     }
 
-    private Point3 center(double time) {
+    private Vec3 center(double time) {
         // return center0 + ((time - time0) / (time1 - time0))*(center1 - center0);
         // lerp between center0 and center1 based on the time
+        double s = (time - time0) / (time1 - time0);
 
-        return Vec3.add(
-            this.center0,
-            Vec3.mul(
-                Vec3.sub(this.center1, this.center0),
-                (time - time0) / (time1 - time0)
-            )
-        ).toPoint3();
+        return new Vec3(
+            center0.x() + s * (center1.x() - center0.x()),
+            center0.y() + s * (center1.y() - center0.y()),
+            center0.z() + s * (center1.z() - center0.z())
+        );
     }
 
     @Override
     public boolean boundingBox(double time0, double time1, AABB outputBox) {
         AABB box0 = new AABB(
-            Vec3.sub(center(time0), new Vec3(radius, radius, radius)).toPoint3(),
-            Vec3.add(center(time0), new Vec3(radius, radius, radius)).toPoint3()
+            Vec3.sub(center(time0), new Vec3(radius, radius, radius)),
+            Vec3.add(center(time0), new Vec3(radius, radius, radius))
         );
 
         AABB box1 = new AABB(
-            Vec3.sub(center(time1), new Vec3(radius, radius, radius)).toPoint3(),
-            Vec3.add(center(time1), new Vec3(radius, radius, radius)).toPoint3()
+            Vec3.sub(center(time1), new Vec3(radius, radius, radius)),
+            Vec3.add(center(time1), new Vec3(radius, radius, radius))
         );
 
         outputBox.set(AABB.surroundingBox(box0, box1));
@@ -0,0 +1,198 @@
+package com.raytracing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PathTracer {
+    /* iterative path tracer:
+        instead of recursing for every bounce, the path keeps its throughput (product of all attenuations so far)
+        and adds throughput * emitted light to the radiance at every hit. Once a few bounces are done, paths are
+        randomly terminated with a probability that grows as the throughput gets darker. Surviving paths are
+        weighted up by the same factor, which keeps the result unbiased while dark paths (e.g. inside the smoke
+        of the cornell box) stop early. maxDepth is only a safeguard.
+
+        Light arriving at a hit on a material with a scattering pdf can be found in two ways: by following the
+        scattered ray (bsdf sampling) and by picking a point on a random light (light sampling). Light sampling
+        is good for small lights and rough materials, bsdf sampling for big lights and glossy materials.
+        LightSampling decides how the two are used:
+         - NONE: only the scattered ray, like the original recursive version
+         - NEE:  every hit samples a light, emission found by the scattered ray is not counted again (except that of
+                 emitters which aren't lights, e.g. moving ones, light sampling can't find them)
+         - MIS:  both are counted, each weighted by how likely its own strategy was to produce that direction
+                 compared to the other one (multiple importance sampling). The weights of one direction add up
+                 to one, so the result stays unbiased and always uses the strategy that is better there.
+     */
+
+    public enum LightSampling {NONE, NEE, MIS}
+
+    // balance: w = pdf / (pdf + otherPdf), power: w = pdf^2 / (pdf^2 + otherPdf^2)
+    public enum Heuristic {BALANCE, POWER}
+
+    // number of bounces after which paths can get terminated by russian roulette
+    private static final int ROULETTE_MIN_DEPTH = 3;
+
+    private final Hittable world;
+    private final List<Hittable> lights;
+    private final Color background;
+    private final int maxDepth;
+
+    private LightSampling lightSampling = LightSampling.MIS;
+    private Heuristic heuristic = Heuristic.POWER;
+
+    public PathTracer(Hittable world, Color background, int maxDepth) {
+        this.world = world;
+        this.lights = new ArrayList<>();
+        this.world.collectLights(this.lights);
+        this.background = background;
+        this.maxDepth = maxDepth;
+    }
+
+    public void setLightSampling(LightSampling lightSampling) {
+        this.lightSampling = lightSampling;
+    }
+
+    public void setHeuristic(Heuristic heuristic) {
+        this.heuristic = heuristic;
+    }
+
+    public Hittable getWorld() {
+        return this.world;
+    }
+
+    public List<Hittable> getLights() {
+        return this.lights;
+    }
+
+    // function to figure out what color the ray returns
+    public Color rayColor(Ray r) {
+        HitRecord rec = new HitRecord();
+        Color radiance = new Color(0, 0, 0);
+        Color throughput = new Color(1, 1, 1);
+        Color attenuation = new Color();
+        Ray ray = r;
+        Ray scattered = new Ray();
+        Ray spare = new Ray(); // scattered and spare take turns, so the caller's ray is never overwritten
+
+        // whether the previous hit sampled a light, and the density with which it chose the current ray
+        boolean lightSampled = false;
+        double scatteringPdf = 0;
+
+        for (int depth = 0; depth < this.maxDepth; depth++) {
+            if (Stats.ENABLED) Stats.get().ray(depth);
+
+            // Check if ray hits anything, if not add the background color
+            if (!this.world.hit(ray, 0.001, Utility.Infinity, rec)) {
+                radiance.addProductLocal(throughput, this.background);
+                break;
+            }
+
+            Material material = rec.getMaterial();
+            double emittedWeight = (lightSampled && material.isEmissive())
+                ? emittedWeight(ray, rec.getT(), scatteringPdf)
+                : 1;
+            radiance.addProductLocal(throughput, material.emitted(rec.getU(), rec.getV(), rec.getP()), emittedWeight);
+
+            boolean scatters = material.scatter(ray, rec, attenuation, scattered);
+
+            // the light sample is taken even when the scattered sample got absorbed (a fuzzy metal reflection
+            // below the surface): it is an estimate of its own, skipping it with the absorbed samples darkens the hit
+            lightSampled = this.lightSampling != LightSampling.NONE
+                && !this.lights.isEmpty() && material.hasScatteringPdf();
+            if (lightSampled)
+                sampleLight(ray, rec, attenuation, throughput, radiance);
+
+            // if ray doesn't get scattered the path ends at the emitter
+            if (!scatters)
+                break;
+
+            if (lightSampled)
+                scatteringPdf = material.scatteringPdf(ray, rec, scattered);
+
+            throughput.mulLocal(attenuation);
+
+            if (depth >= ROULETTE_MIN_DEPTH) {
+                double survival = Math.max(throughput.x(), Math.max(throughput.y(), throughput.z()));
+                if (survival < 1) {
+                    if (Utility.randomDouble() >= survival)
+                        break;
+                    throughput.mulLocal(1 / survival);
+                }
+            }
+
+            // continue with the scattered ray, the other buffer receives the next scatter
+            ray = scattered;
+            scattered = spare;
+            spare = ray;
+        }
+
+        return radiance;
+    }
+
+    // adds the light arriving at rec directly from one randomly chosen light
+    private void sampleLight(Ray rIn, HitRecord rec, Color attenuation, Color throughput, Color radiance) {
+        Hittable light = this.lights.get(Utility.randomInt(0, this.lights.size() - 1));
+        Ray shadowRay = new Ray(rec.getP(), Vec3.unitVector(light.random(rec.getP())), rIn.getTime());
+
+        // density of this direction: choosing the light times the light's own density
+        double lightPdf = light.pdfValue(shadowRay.getOrigin(), shadowRay.getDirection()) / this.lights.size();
+        double scatteringPdf = rec.getMaterial().scatteringPdf(rIn, rec, shadowRay);
+        if (lightPdf <= 0 || scatteringPdf <= 0)
+            return;
+
+        HitRecord lightRec = new HitRecord();
+        if (!light.hit(shadowRay, 0.001, Utility.Infinity, lightRec))
+            return;
+
+        // the light only counts if nothing is in between
+        if (Stats.ENABLED) Stats.get().shadowRays++;
+        if (this.world.occluded(shadowRay, 0.001, lightRec.getT() - 0.001))
+            return;
+
+        // radiance += throughput * attenuation * emitted * scatteringPdf / lightPdf (* mis weight)
+        double scale = scatteringPdf / lightPdf;
+        if (this.lightSampling == LightSampling.MIS)
+            scale *= misWeight(lightPdf, scatteringPdf);
+
+        Color emitted = lightRec.getMaterial().emitted(lightRec.getU(), lightRec.getV(), lightRec.getP());
+        Color weight = new Color();
+        weight.set(attenuation);
+        weight.mulLocal(throughput);
+        radiance.addProductLocal(weight, emitted, scale);
+    }
+
+    // weight of emission found by a scattered ray when the hit it was scattered from also sampled a light
+    private double emittedWeight(Ray ray, double t, double scatteringPdf) {
+        double lightPdf = lightPdf(ray, t);
+        if (lightPdf <= 0)
+            return 1; // emitter which can't be light sampled (not a light), only the scattered ray can find it
+
+        if (this.lightSampling != LightSampling.MIS)
+            return 0; // NEE: light sampling already counted it
+
+        return misWeight(scatteringPdf, lightPdf);
+    }
+
+    /*
+     density with which light sampling would have chosen the direction of ray: only the light which is actually
+     hit at distance t could have produced it (the shadow ray of any other one would be blocked)
+    */
+    private double lightPdf(Ray ray, double t) {
+        HitRecord lightRec = new HitRecord();
+        double pdf = 0;
+
+        for (Hittable light : this.lights) {
+            if (light.hit(ray, 0.001, Utility.Infinity, lightRec) && Math.abs(lightRec.getT() - t) <= 1e-9 * (1 + t))
+                pdf += light.pdfValue(ray.getOrigin(), ray.getDirection());
+        }
+
+        return pdf / this.lights.size();
+    }
+
+    private double misWeight(double pdf, double otherPdf) {
+        if (this.heuristic == Heuristic.POWER) {
+            pdf *= pdf;
+            otherPdf *= otherPdf;
+        }
+        return pdf / (pdf + otherPdf);
+    }
+}
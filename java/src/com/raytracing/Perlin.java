@@ -18,43 +18,62 @@ public class Perlin {
         this.permZ = perlinGeneratePerm();
     }
 
-    public double noise(Point3 p) {
-        // remove everything before decimal
-        double u = p.x() - Math.floor(p.x());
-        double v = p.y() - Math.floor(p.y());
-        double w = p.z() - Math.floor(p.z());
-
-        int i = (int) Math.floor(p.x());
-        int j = (int) Math.floor(p.y());
-        int k = (int) Math.floor(p.z());
-        Vec3[][][] c = new Vec3[2][2][2];
-
-        for (int di = 0; di < 2; di++)
-            for (int dj = 0; dj < 2; dj++)
-                for (int dk = 0; dk < 2; dk++)
-                    c[di][dj][dk] = ranVec[
-                        permX[(i + di) & 255] ^
-                        permY[(j + dj) & 255] ^
-                        permZ[(k + dk) & 255]
-                    ];
-
-        return perlinInterpolation(c, u, v, w);
+    public double noise(Vec3 p) {
+        return noise(p.x(), p.y(), p.z());
     }
 
-    public double turbulence(Point3 p, int depth) {
+    public double turbulence(Vec3 p, int depth) {
         double accum = 0;
-        Point3 tempP = p;
+        double x = p.x(), y = p.y(), z = p.z();
         double weight = 1;
 
         for (int i = 0; i < depth; i++) {
-            accum += weight * noise(tempP);
+            accum += weight * noise(x, y, z);
             weight *= 0.5;
-            tempP = Vec3.mul(tempP, 2).toPoint3();
+            x *= 2;
+            y *= 2;
+            z *= 2;
         }
 
         return Math.abs(accum);
     }
 
+    private double noise(double x, double y, double z) {
+        // remove everything before decimal
+        double u = x - Math.floor(x);
+        double v = y - Math.floor(y);
+        double w = z - Math.floor(z);
+
+        int i = (int) Math.floor(x);
+        int j = (int) Math.floor(y);
+        int k = (int) Math.floor(z);
+
+        // perlin interpolation over the 8 surrounding lattice vectors, without collecting them in an array first
+        double uu = u * u * (3 - 2 * u);
+        double vv = v * v * (3 - 2 * v);
+        double ww = w * w * (3 - 2 * w);
+        double accum = 0.0;
+
+        for (int di = 0; di < 2; di++)
+            for (int dj = 0; dj < 2; dj++)
+                for (int dk = 0; dk < 2; dk++) {
+                    Vec3 c = ranVec[
+                        permX[(i + di) & 255] ^
+                        permY[(j + dj) & 255] ^
+                        permZ[(k + dk) & 255]
+                    ];
+                    // dot(c, weightV) with weightV = (u - di, v - dj, w - dk)
+                    double dot = c.x() * (u - di) + c.y() * (v - dj) + c.z() * (w - dk);
+                    accum +=
+                        (di * uu + (1 - di) * (1 - uu))
+                            * (dj * vv + (1 - dj) * (1 - vv))
+                            * (dk * ww + (1 - dk) * (1 - ww))
+                            * dot;
+                }
+
+        return accum;
+    }
+
     private static int[] perlinGeneratePerm() {
         int[] p = new int[pointCount];
 
@@ -74,24 +93,4 @@ public class Perlin {
             p[target] = tmp;
         }
     }
-
-    private static double perlinInterpolation(Vec3[][][] c, double u, double v, double w) {
-        double uu = u * u * (3 - 2 * u);
-        double vv = v * v * (3 - 2 * v);
-        double ww = w * w * (3 - 2 * w);
-        double accum = 0.0;
-
-        for (int i = 0; i < 2; i++)
-            for (int j = 0; j < 2; j++)
-                for (int k = 0; k < 2; k++) {
-                    Vec3 weightV = new Vec3(u - i, v - j, w - k);
-                    accum +=
-                        (i * uu + (1 - i) * (1 - uu))
-                            * (j * vv + (1 - j) * (1 - vv))
-                            * (k * ww + (1 - k) * (1 - ww))
-                            * Vec3.dot(c[i][j][k], weightV);
-                }
-
-        return accum;
-    }
 }
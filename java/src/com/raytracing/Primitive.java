@@ -0,0 +1,7 @@
+package com.raytracing;
+
+public interface Primitive extends Hittable {
+    // objects which record themselves in hit (rec.setHit) instead of filling in the record: p, normal, front face,
+    // u, v and the material of their hit at t are computed here, once the closest hit is known (see HitRecord)
+    void hitAttributes(Ray r, double t, HitRecord rec);
+}
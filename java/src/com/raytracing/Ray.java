@@ -3,24 +3,26 @@ package com.raytracing;
 public class Ray {
     // Ray with an Origin Point and a direction vector.
     // Changing the parameter t moves the resulting Point along the ray. (Linear interpolation)
+    // The setters copy into the vectors of the ray, e.g. setOrigin(rec.getP()) doesn't tie the ray to the hit record.
+    // A ray made with the second constructor uses the vectors it was given, the setters would change those.
 
-    private Point3 origin;
-    private Vec3 direction;
+    private final Vec3 origin;
+    private final Vec3 direction;
     private double time;
 
     public Ray() {
-        this.origin = new Point3();
+        this.origin = new Vec3();
         this.direction = new Vec3();
         this.time = 0;
     }
 
-    public Ray(Point3 origin, Vec3 direction, double time) {
+    public Ray(Vec3 origin, Vec3 direction, double time) {
         this.origin = origin;
         this.direction = direction;
         this.time = time;
     }
 
-    public Point3 getOrigin() {
+    public Vec3 getOrigin() {
         return this.origin;
     }
 
@@ -32,19 +34,23 @@ public class Ray {
         return this.time;
     }
 
-    public void setOrigin(Point3 origin) {
-        this.origin = origin;
+    public void setOrigin(Vec3 origin) {
+        this.origin.set(origin);
     }
 
     public void setDirection(Vec3 direction) {
-        this.direction = direction;
+        this.direction.set(direction);
     }
 
     public void setTime(double time) {
         this.time = time;
     }
 
-    public Point3 at(double t) {
-        return Vec3.add(this.origin, Vec3.mul(this.direction, t)).toPoint3();
+    public Vec3 at(double t) {
+        return new Vec3(
+            this.origin.x() + t * this.direction.x(),
+            this.origin.y() + t * this.direction.y(),
+            this.origin.z() + t * this.direction.z()
+        );
     }
 }
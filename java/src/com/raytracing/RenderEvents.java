@@ -0,0 +1,141 @@
+package com.raytracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public class RenderEvents {
+    /* Java Flight Recorder events of the phases of a render: building the scene, building bvhs, loading
+        textures, rendering tiles and writing the image. JFR records the duration and the thread of every event
+        next to its own events (GC, allocation, method samples, ...), so the recording shows where the time of a
+        render goes across all threads without a profiler of our own.
+
+        The events cost next to nothing when no recording is running. To record a render and look at it:
+            java -XX:StartFlightRecording=filename=render.jfr,settings=profile -cp out com.raytracing.Main
+            jfr print --events com.raytracing.Tile render.jfr        (or jfr summary, or JDK Mission Control)
+     */
+
+    private static final String CATEGORY = "Ray Tracing";
+
+    @Name("com.raytracing.SceneBuild")
+    @Label("Scene Build")
+    @Category(CATEGORY)
+    @Description("Construction of a scene of Scenes, including its bvhs and textures")
+    public static class SceneBuild extends Event {
+        @Label("Number")
+        public int number;
+
+        @Label("Name")
+        public String name;
+
+        @Label("Objects")
+        @Description("Objects at the top level of the world")
+        public int objects;
+    }
+
+    @Name("com.raytracing.BVHBuild")
+    @Label("BVH Build")
+    @Category(CATEGORY)
+    @Description("Sorting the primitives of a BVHNode or FlatBVH into a tree")
+    public static class BVHBuild extends Event {
+        @Label("Primitives")
+        public int primitives;
+
+        @Label("Nodes")
+        public int nodes;
+
+        @Label("Max Leaf Size")
+        public int maxLeafSize;
+
+        @Label("Linear")
+        @Description("Built by the linear (Morton code) builder instead of the SAH builder")
+        public boolean linear;
+    }
+
+    @Name("com.raytracing.BVHCacheLoad")
+    @Label("BVH Cache Load")
+    @Category(CATEGORY)
+    @Description("Reading a FlatBVH from the BVHCache instead of building it")
+    public static class BVHCacheLoad extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Hit")
+        @Description("The file held the tree, otherwise it gets built again")
+        public boolean hit;
+
+        @Label("Bytes")
+        public long bytes;
+    }
+
+    @Name("com.raytracing.TextureLoad")
+    @Label("Texture Load")
+    @Category(CATEGORY)
+    @Description("Reading and decoding the image of an ImageTexture")
+    public static class TextureLoad extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+    }
+
+    @Name("com.raytracing.Tile")
+    @Label("Tile")
+    @Category(CATEGORY)
+    @Description("Rendering the samples of one pass for the pixels of a tile")
+    public static class Tile extends Event {
+        @Label("X")
+        public int x;
+
+        @Label("Y")
+        public int y;
+
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+
+        @Label("Pass")
+        public int pass;
+
+        @Label("Samples")
+        @Description("Samples per pixel after the pass, or added to every noisy pixel in adaptive passes")
+        public int samples;
+    }
+
+    @Name("com.raytracing.ImageWrite")
+    @Label("Image Write")
+    @Category(CATEGORY)
+    @Description("Encoding and writing the pixels of a region of the image, the whole image or a streamed tile")
+    public static class ImageWrite extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Format")
+        public String format;
+
+        @Label("X")
+        public int x;
+
+        @Label("Y")
+        public int y;
+
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+}
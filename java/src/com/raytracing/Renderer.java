@@ -0,0 +1,419 @@
+package com.raytracing;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class Renderer {
+    /* tile based render engine:
+        the image is split into square tiles which are rendered in parallel on a work-stealing thread pool.
+        Every tile writes into its own region of a shared framebuffer, so no synchronization is needed
+        between the threads. The order in which the tiles are handed out can be chosen, space-filling curves
+        keep neighbouring tiles (and thus the same parts of the scene) on the same thread for longer.
+
+        With adaptive sampling the image is rendered in passes: the first pass gives every pixel minSamples
+        samples, every further pass only goes to pixels whose luminance is not known precisely enough yet (the
+        95% confidence interval of the mean is wider than threshold * sqrt(mean); the image is gamma corrected with
+        a square root, so this is about the same visible error in dark and bright areas). samplesPerPixel then is
+        the average budget: rendering stops once every pixel has converged or the budget is spent. Which pixels
+        get samples in a pass only depends on the pixels themselves, so the image still doesn't depend on the
+        threads.
+
+        Progressive rendering also splits the samples into passes over the whole image, a snapshot of the
+        framebuffer can be taken after every pass (or after some time has passed) to see the image build up and
+        stop early. Samples are always added to the framebuffer one by one and seeded with their index, so the
+        final image is exactly the same as when rendering all samples in one pass.
+
+        A TileListener gets every tile as soon as all of its pixels have their final samples (during the last
+        pass), e.g. to write it to the output file while the other tiles are still being rendered. With adaptive
+        sampling it is not known which pass is the last one, so it isn't called there.
+     */
+
+    public interface TileListener {
+        // called on the render thread of the tile, for the pixels x0 <= x < x1 and y0 <= y < y1
+        void tileDone(FrameBuffer frameBuffer, int x0, int y0, int x1, int y1);
+    }
+
+    public enum TileOrder {ROW_MAJOR, MORTON, HILBERT}
+
+    // pixels darker than this are compared against it instead of their own luminance, so noise in almost
+    // black areas doesn't keep them busy forever
+    private static final double MIN_LUMINANCE = 1.0 / 256;
+
+    private final PathTracer tracer;
+    private final Camera cam;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int samplesPerPixel;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int tileSize = 32;
+    private TileOrder tileOrder = TileOrder.HILBERT;
+    private int frame = 0;
+
+    private double adaptiveThreshold = 0; // 0 => every pixel gets exactly samplesPerPixel samples
+    private int minSamples = 16;
+    private int maxSamples = Integer.MAX_VALUE;
+
+    private int samplesPerPass = 0; // 0 => all samples in one pass
+    private long snapshotInterval = 0;
+    private Consumer<FrameBuffer> snapshot = null;
+    private long lastSnapshot;
+    private TileListener tileListener = null;
+    private int pass;
+    private long[] traversalCost = null; // only with Stats on
+
+    public Renderer(PathTracer tracer, Camera cam, int imageWidth, int imageHeight, int samplesPerPixel) {
+        this.tracer = tracer;
+        this.cam = cam;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.samplesPerPixel = samplesPerPixel;
+    }
+
+    // number of render threads, values < 1 use all available cores
+    public void setThreads(int threads) {
+        this.threads = (threads < 1) ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    public void setTileSize(int tileSize) {
+        this.tileSize = Math.max(1, tileSize);
+    }
+
+    public void setTileOrder(TileOrder tileOrder) {
+        this.tileOrder = tileOrder;
+    }
+
+    // frame number of an animation, mixed into the random seed of every sample
+    public void setFrame(int frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Turns on adaptive sampling, samplesPerPixel becomes the average number of samples per pixel.
+     * @param threshold error at which a pixel counts as converged (e.g. 0.05), 0 turns adaptive sampling off
+     * @param minSamples samples every pixel gets before its error is estimated, at least 2
+     * @param maxSamples upper limit of samples for a single pixel
+     */
+    public void setAdaptiveSampling(double threshold, int minSamples, int maxSamples) {
+        this.adaptiveThreshold = Math.max(0, threshold);
+        this.minSamples = Math.max(2, minSamples);
+        this.maxSamples = Math.max(this.minSamples, maxSamples);
+    }
+
+    /**
+     * Renders the image in passes and hands the framebuffer to snapshot in between.
+     * @param samplesPerPass samples every pixel gets per pass, 0 renders all samples in one pass
+     * @param snapshotInterval minimum time between two snapshots in milliseconds, 0 takes one after every pass
+     * @param snapshot called between passes on the calling thread, while no tiles are being rendered
+     */
+    public void setProgressive(int samplesPerPass, long snapshotInterval, Consumer<FrameBuffer> snapshot) {
+        this.samplesPerPass = Math.max(0, samplesPerPass);
+        this.snapshotInterval = Math.max(0, snapshotInterval);
+        this.snapshot = snapshot;
+    }
+
+    // gets every finished tile of a render without adaptive sampling, null => none
+    public void setTileListener(TileListener tileListener) {
+        this.tileListener = tileListener;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    // traversal cost (see Stats) of every pixel in the last render summed over its samples, row by row, null if
+    // Stats are off
+    public long[] getTraversalCost() {
+        return this.traversalCost;
+    }
+
+    public FrameBuffer render() {
+        return render(new FrameBuffer(this.imageWidth, this.imageHeight));
+    }
+
+    /**
+     * Renders into an existing framebuffer, e.g. one opened from a checkpoint. Pixels keep the samples they already
+     * have and only get the missing ones, so a resumed render ends up exactly like an uninterrupted one (with
+     * adaptive sampling, pixels may get a few samples more or less when it is resumed in the middle of a pass).
+     * @param frameBuffer framebuffer with the size of the image
+     * @return frameBuffer
+     */
+    public FrameBuffer render(FrameBuffer frameBuffer) {
+        int[] tiles = tileOrder();
+
+        this.pass = 0;
+        this.lastSnapshot = System.currentTimeMillis();
+        if (Stats.ENABLED) {
+            Stats.reset();
+            this.traversalCost = new long[this.imageWidth * this.imageHeight];
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        try {
+            if (this.adaptiveThreshold > 0) {
+                renderAdaptive(pool, tiles, frameBuffer);
+            } else {
+                // every pass fills the pixels up to the next multiple of batch samples
+                int batch = (this.samplesPerPass > 0) ? this.samplesPerPass : this.samplesPerPixel;
+                int done = minSamples(frameBuffer);
+
+                for (int target = done - done % batch + batch; done < this.samplesPerPixel; target += batch) {
+                    if (this.pass > 0) passDone(frameBuffer);
+                    done = Math.min(target, this.samplesPerPixel);
+                    renderPass(pool, tiles, frameBuffer, done, false);
+                }
+
+                // a resumed render which was already done still hands all tiles to the listener
+                if (this.pass == 0 && this.tileListener != null) {
+                    for (int tile : tiles) {
+                        tileDone(tile, frameBuffer);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        return frameBuffer;
+    }
+
+    private int minSamples(FrameBuffer frameBuffer) {
+        int min = Integer.MAX_VALUE;
+        for (int y = 0; y < this.imageHeight; y++) {
+            for (int x = 0; x < this.imageWidth; x++) {
+                min = Math.min(min, frameBuffer.getSamples(x, y));
+            }
+        }
+        return min;
+    }
+
+    private void renderAdaptive(ForkJoinPool pool, int[] tiles, FrameBuffer frameBuffer) {
+        long budget = (long) this.samplesPerPixel * this.imageWidth * this.imageHeight;
+        renderPass(pool, tiles, frameBuffer, Math.min(this.minSamples, this.samplesPerPixel), false);
+
+        while (true) {
+            long spent = 0;
+            long active = 0;
+            for (int y = 0; y < this.imageHeight; y++) {
+                for (int x = 0; x < this.imageWidth; x++) {
+                    spent += frameBuffer.getSamples(x, y);
+                    if (!isConverged(frameBuffer, x, y)) active++;
+                }
+            }
+
+            // spread what is left of the budget over the pixels which still need samples
+            int batch = (int) Math.min(this.minSamples, (active > 0) ? (budget - spent) / active : 0);
+            if (batch < 1) break;
+
+            passDone(frameBuffer);
+            renderPass(pool, tiles, frameBuffer, batch, true);
+        }
+    }
+
+    /*
+     onlyNoisy == false: every pixel gets samples until it has `samples` samples
+     onlyNoisy == true:  every pixel which hasn't converged yet gets `samples` more samples
+    */
+    private void renderPass(ForkJoinPool pool, int[] tiles, FrameBuffer frameBuffer, int samples, boolean onlyNoisy) {
+        AtomicInteger tilesDone = new AtomicInteger();
+        this.pass++;
+        boolean last = !onlyNoisy && this.adaptiveThreshold == 0 && samples == this.samplesPerPixel;
+        pool.invoke(new TileTask(tiles, 0, tiles.length, frameBuffer, tilesDone, samples, onlyNoisy, last));
+
+        // a checkpoint on the disk is at least as recent as the last pass
+        frameBuffer.flush();
+    }
+
+    // called between two passes, takes a snapshot if it is time for one
+    private void passDone(FrameBuffer frameBuffer) {
+        if (this.snapshot == null) return;
+
+        long now = System.currentTimeMillis();
+        if (now - this.lastSnapshot >= this.snapshotInterval) {
+            this.snapshot.accept(frameBuffer);
+            this.lastSnapshot = now;
+        }
+    }
+
+    private boolean isConverged(FrameBuffer frameBuffer, int x, int y) {
+        int n = frameBuffer.getSamples(x, y);
+        if (n >= this.maxSamples) return true;
+
+        // half width of the 95% confidence interval of the mean luminance
+        double error = 1.96 * Math.sqrt(frameBuffer.getVariance(x, y) / n);
+        return error <= this.adaptiveThreshold * Math.sqrt(Math.max(frameBuffer.getMean(x, y), MIN_LUMINANCE));
+    }
+
+    // renders the samples of one pass (see renderPass) for the pixels of a tile
+    private void renderTile(int tile, FrameBuffer frameBuffer, int samples, boolean onlyNoisy) {
+        int tilesX = tilesX();
+        int x0 = (tile % tilesX) * this.tileSize;
+        int y0 = (tile / tilesX) * this.tileSize;
+        int x1 = Math.min(x0 + this.tileSize, this.imageWidth);
+        int y1 = Math.min(y0 + this.tileSize, this.imageHeight);
+
+        RenderEvents.Tile event = new RenderEvents.Tile();
+        event.begin();
+
+        for (int row = y0; row < y1; row++) {
+            for (int i = x0; i < x1; i++) {
+                if (onlyNoisy && isConverged(frameBuffer, i, row)) continue;
+
+                // every sample has its own random sequence (seeded with its index), so the image is the same
+                // no matter how many threads render it and how the samples are split into passes
+                int first = frameBuffer.getSamples(i, row);
+                int last = onlyNoisy ? (int) Math.min((long) first + samples, this.maxSamples) : samples;
+
+                long cost = Stats.ENABLED ? Stats.get().traversalCost() : 0;
+                for (int s = first; s < last; s++) {
+                    frameBuffer.addSample(i, row, sample(i, row, s));
+                }
+                if (Stats.ENABLED) this.traversalCost[row * this.imageWidth + i] += Stats.get().traversalCost() - cost;
+            }
+        }
+
+        if (event.shouldCommit()) {
+            event.x = x0;
+            event.y = y0;
+            event.width = x1 - x0;
+            event.height = y1 - y0;
+            event.pass = this.pass;
+            event.samples = samples;
+            event.commit();
+        }
+    }
+
+    private void tileDone(int tile, FrameBuffer frameBuffer) {
+        int tilesX = tilesX();
+        int x0 = (tile % tilesX) * this.tileSize;
+        int y0 = (tile / tilesX) * this.tileSize;
+        this.tileListener.tileDone(frameBuffer, x0, y0,
+            Math.min(x0 + this.tileSize, this.imageWidth), Math.min(y0 + this.tileSize, this.imageHeight));
+    }
+
+    private int tilesX() {
+        return (this.imageWidth + this.tileSize - 1) / this.tileSize;
+    }
+
+    private Color sample(int i, int row, int s) {
+        // the camera counts v from the bottom of the image, the framebuffer counts rows from the top
+        int j = this.imageHeight - 1 - row;
+
+        Utility.setSeed((long) row * this.imageWidth + i, s, this.frame);
+        double u = (i + Utility.randomDouble()) / (this.imageWidth - 1);
+        double v = (j + Utility.randomDouble()) / (this.imageHeight - 1);
+        Ray r = this.cam.getRay(u, v);
+        return this.tracer.rayColor(r);
+    }
+
+    // returns the indices (row-major) of all tiles in the order in which they should be rendered
+    private int[] tileOrder() {
+        int tilesX = tilesX();
+        int tilesY = (this.imageHeight + this.tileSize - 1) / this.tileSize;
+
+        Integer[] tiles = new Integer[tilesX * tilesY];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = i;
+        }
+
+        int n = Integer.highestOneBit(Math.max(1, Math.max(tilesX, tilesY) - 1)) << 1; // side of the curve, 2^k
+        Comparator<Integer> order = switch (this.tileOrder) {
+            case ROW_MAJOR -> Comparator.naturalOrder();
+            case MORTON -> Comparator.comparingLong(t -> mortonIndex(t % tilesX, t / tilesX));
+            case HILBERT -> Comparator.comparingLong(t -> hilbertIndex(n, t % tilesX, t / tilesX));
+        };
+        Arrays.sort(tiles, order);
+
+        return Arrays.stream(tiles).mapToInt(Integer::intValue).toArray();
+    }
+
+    // interleaves the bits of x and y (z-order curve)
+    private static long mortonIndex(int x, int y) {
+        long index = 0;
+        for (int b = 0; b < 16; b++) {
+            index |= (long) ((x >> b) & 1) << (2 * b);
+            index |= (long) ((y >> b) & 1) << (2 * b + 1);
+        }
+        return index;
+    }
+
+    // distance of (x, y) along a hilbert curve filling an n x n square, n has to be a power of two
+    private static long hilbertIndex(int n, int x, int y) {
+        long index = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += (long) s * s * ((3 * rx) ^ ry);
+
+            // rotate the quadrant so the curve stays continuous
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int temp = x;
+                x = y;
+                y = temp;
+            }
+        }
+        return index;
+    }
+
+    // splits the list of tiles in halves until a single tile is left, idle threads steal the other halves
+    @SuppressWarnings("serial")
+    private class TileTask extends RecursiveAction {
+        private final int[] tiles;
+        private final int start;
+        private final int end;
+        private final FrameBuffer frameBuffer;
+        private final AtomicInteger tilesDone;
+        private final int samples;
+        private final boolean onlyNoisy;
+        private final boolean last;
+
+        TileTask(
+            int[] tiles, int start, int end, FrameBuffer frameBuffer, AtomicInteger tilesDone, int samples,
+            boolean onlyNoisy, boolean last
+        ) {
+            this.tiles = tiles;
+            this.start = start;
+            this.end = end;
+            this.frameBuffer = frameBuffer;
+            this.tilesDone = tilesDone;
+            this.samples = samples;
+            this.onlyNoisy = onlyNoisy;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start == 1) {
+                renderTile(this.tiles[this.start], this.frameBuffer, this.samples, this.onlyNoisy);
+                if (this.last && tileListener != null) tileDone(this.tiles[this.start], this.frameBuffer);
+                printProgress(pass, this.tilesDone.incrementAndGet(), this.tiles.length);
+                return;
+            }
+
+            int mid = this.start + (this.end - this.start) / 2;
+            invokeAll(
+                new TileTask(
+                    this.tiles, this.start, mid, this.frameBuffer, this.tilesDone, this.samples, this.onlyNoisy, this.last
+                ),
+                new TileTask(
+                    this.tiles, mid, this.end, this.frameBuffer, this.tilesDone, this.samples, this.onlyNoisy, this.last
+                )
+            );
+        }
+    }
+
+    private static synchronized void printProgress(int pass, int done, int total) {
+        System.out.print("\r" + ((pass > 1) ? "Pass " + pass + " --- " : "") +
+            "Tiles remaining: " + (total - done) + " of " + total + " --- " +
+            (int) (((double) done / total) * 100) + "% completed");
+        System.out.flush();
+    }
+}
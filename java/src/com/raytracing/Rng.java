@@ -0,0 +1,64 @@
+package com.raytracing;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class Rng {
+    /* xoroshiro128++ pseudo random number generator:
+        tiny state (two longs), no allocation and no synchronization per number. Every render thread owns
+        one instance (see Utility), which is re-seeded for every (pixel, sample, frame) so that an image does
+        not depend on which thread rendered which pixel.
+     */
+
+    private long s0;
+    private long s1;
+
+    public Rng() {
+        this(ThreadLocalRandom.current().nextLong());
+    }
+
+    public Rng(long seed) {
+        setSeed(seed);
+    }
+
+    public void setSeed(long seed) {
+        // expand the seed with splitmix64, xoroshiro must not start with an all zero state
+        long x = seed;
+        x += 0x9E3779B97F4A7C15L;
+        this.s0 = mix64(x);
+        x += 0x9E3779B97F4A7C15L;
+        this.s1 = mix64(x);
+
+        if ((this.s0 | this.s1) == 0) this.s1 = 1;
+    }
+
+    // seeds the generator with a hash of the pixel index, the sample index and the frame number
+    public void setSeed(long pixel, int sample, int frame) {
+        long h = mix64(pixel + 0x9E3779B97F4A7C15L);
+        h = mix64(h ^ (sample + 0x632BE59BD9B4E019L));
+        h = mix64(h ^ (frame + 0x8CB92BA72F3D8DD7L));
+        setSeed(h);
+    }
+
+    public long nextLong() {
+        final long a = this.s0;
+        long b = this.s1;
+        final long result = Long.rotateLeft(a + b, 17) + a;
+
+        b ^= a;
+        this.s0 = Long.rotateLeft(a, 49) ^ b ^ (b << 21);
+        this.s1 = Long.rotateLeft(b, 28);
+
+        return result;
+    }
+
+    // uniformly distributed double in [0, 1)
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,85 @@
+package com.raytracing;
+
+public class Scene {
+    // everything needed to render one of the scenes in Scenes: the world, where the camera looks at it from, the
+    // background and the settings used in DEV mode
+
+    private final String name;
+    private final HittableList world;
+    private final Point3 lookFrom;
+    private final Point3 lookAt;
+    private final double vFOV;
+
+    private double aperture = 0;
+    private double aspectRatio = (double) 16 / 9;
+    private final Color background = Utility.hexToColor("#bce5f5");
+    private int devImageWidth = 500;
+    private int devSamplesPerPixel = 10;
+
+    public Scene(String name, HittableList world, Point3 lookFrom, Point3 lookAt, double vFOV) {
+        this.name = name;
+        this.world = world;
+        this.lookFrom = lookFrom;
+        this.lookAt = lookAt;
+        this.vFOV = vFOV;
+    }
+
+    public void setAperture(double aperture) {
+        this.aperture = aperture;
+    }
+
+    public void setAspectRatio(double aspectRatio) {
+        this.aspectRatio = aspectRatio;
+    }
+
+    public void setBackground(Color background) {
+        this.background.set(background);
+    }
+
+    public void setDevImageWidth(int devImageWidth) {
+        this.devImageWidth = devImageWidth;
+    }
+
+    public void setDevSamplesPerPixel(int devSamplesPerPixel) {
+        this.devSamplesPerPixel = devSamplesPerPixel;
+    }
+
+    // camera looking from lookFrom at lookAt, focused on lookAt
+    public Camera camera() {
+        Vec3 viewUp = new Vec3(0, 1, 0); // horizontally level view
+        double distToFocus = Vec3.sub(this.lookFrom, this.lookAt).length();
+
+        return new Camera(
+            this.lookFrom, this.lookAt, viewUp, this.vFOV, this.aspectRatio, this.aperture, distToFocus, 0, 1
+        );
+    }
+
+    // height of an image of the given width with the aspect ratio of the scene
+    public int imageHeight(int imageWidth) {
+        return (int) (imageWidth / this.aspectRatio);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public HittableList getWorld() {
+        return this.world;
+    }
+
+    public Color getBackground() {
+        return this.background;
+    }
+
+    public double getAspectRatio() {
+        return this.aspectRatio;
+    }
+
+    public int getDevImageWidth() {
+        return this.devImageWidth;
+    }
+
+    public int getDevSamplesPerPixel() {
+        return this.devSamplesPerPixel;
+    }
+}
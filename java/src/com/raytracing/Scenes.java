@@ -2,6 +2,108 @@ package com.raytracing;
 
 public class Scenes {
 
+    // numbers of all scenes, see scene()
+    public static final int[] NUMBERS = {0, 1, 2, 3, 4, 5, 6, 7, 8, 20, 21, 22, 23};
+
+    /**
+     * Builds a scene together with its camera. The random parts of the scenes (small spheres, perlin noise) are
+     * seeded, so a scene turns out the same every time.
+     * @param number number of the scene, unknown numbers give the default scene
+     */
+    public static Scene scene(int number) {
+        RenderEvents.SceneBuild event = new RenderEvents.SceneBuild();
+        event.begin();
+        Utility.setSeed(0);
+
+        Scene scene;
+        switch (number) {
+            case 1: // --------------------------------------------------------- small Spheres
+                scene = new Scene("smallSpheres", smallSpheres(), new Point3(13, 2.2, 4), new Point3(0, 0.4, 0), 20);
+                break;
+
+            case 2: // --------------------------------------------------------- checkered Spheres
+                scene = new Scene("checkeredSpheres", checkeredSpheres(), new Point3(0, 0, 20), new Point3(0, 0, 0), 30);
+                break;
+
+            case 3: // --------------------------------------------------------- perlin Spheres
+                scene = new Scene("perlinSpheres", perlinSpheres(), new Point3(4, 4, 10), new Point3(0, 1.8, -2.5), 40);
+                break;
+
+            case 4: // --------------------------------------------------------- earth & moon
+                scene = new Scene("earth", earth(), new Point3(5, 2, -1), new Point3(0, 0, -1.5), 60);
+                break;
+
+            case 5: // --------------------------------------------------------- lights
+                scene = new Scene("lights", lights(), new Point3(20, 4, 5), new Point3(0, 2, -.7), 20);
+                scene.setDevSamplesPerPixel(75);
+                scene.setBackground(new Color());
+                break;
+
+            case 6: // --------------------------------------------------------- cornell box
+                scene = new Scene(
+                    "cornellBox", cornellBox(), new Point3(250, 250, 1200), new Point3(250, 250, 0), 40
+                );
+                scene.setBackground(new Color());
+                scene.setAspectRatio(1);
+                break;
+
+            case 7: // --------------------------------------------------------- cornell box smoke
+                scene = new Scene(
+                    "cornellBoxSmoke", cornellBoxSmoke(), new Point3(250, 250, 1200), new Point3(250, 250, 0), 40
+                );
+                scene.setDevSamplesPerPixel(75);
+                scene.setBackground(new Color());
+                scene.setAspectRatio(1);
+                break;
+
+            case 8: // --------------------------------------------------------- final scene for book 2
+                scene = new Scene("finalScene", finalScene(), new Point3(700, 160, 900), new Point3(150, 140, 0), 50);
+                scene.setDevSamplesPerPixel(15);
+                scene.setDevImageWidth(600);
+                scene.setBackground(new Color());
+                scene.setAperture(.7);
+                break;
+
+            case 20: // --------------------------------------------------------- spheres inside box
+                scene = new Scene("insideBox", insideBox(), new Point3(8, 1.8, 2.5), new Point3(0, 0.4, 0), 45);
+                scene.setDevSamplesPerPixel(100);
+                scene.setBackground(new Color());
+                scene.setAperture(10);
+                break;
+
+            case 21: // --------------------------------------------------------- all rotations
+                scene = new Scene("rotations", rotations(), new Point3(0, 5.8, 10), new Point3(0, 3.5, 0), 60);
+                scene.setDevSamplesPerPixel(75);
+                scene.setBackground(new Color());
+                break;
+
+            case 22: // --------------------------------------------------------- bokeh
+                scene = new Scene("bokeh", bokeh(), new Point3(0, 1.5, 40), new Point3(0, 1.3, 35), 40);
+                scene.setDevSamplesPerPixel(75);
+                scene.setBackground(new Color());
+                scene.setAperture(0.3);
+                break;
+
+            case 23: // --------------------------------------------------------- instances
+                scene = new Scene("instances", instances(), new Point3(0, 1800, 2500), new Point3(0, 0, -3500), 40);
+                scene.setDevSamplesPerPixel(30);
+                break;
+
+            default: // --------------------------------------------------------- default scene
+                scene = new Scene(
+                    "standardScene", standardScene(), new Point3(13, 2.2, 4), new Point3(0, 0.4, 0), 20
+                );
+                scene.setAperture(0.1);
+                break;
+        }
+
+        event.number = number;
+        event.name = scene.getName();
+        event.objects = scene.getWorld().getObjects().size();
+        event.commit();
+        return scene;
+    }
+
     public static HittableList standardScene() {
         HittableList objects = new HittableList();
 
@@ -78,13 +180,13 @@ public class Scenes {
             new Point3(boxSize / 2, boxSize, boxSize / 2),
             metalRed
         );
-        box = new RotateY(box, 12);
+        box = new Instance(box, Transform.rotationY(12));
         objects.add(box);
         objects.add(new Sphere(new Point3(4, 1, -1), 1, metalGold));
 
         objects.add(new Sphere(new Point3(4, 0.55, 2.8), .45, perlinPurple));
 
-        return objects;
+        return topLevel(objects);
     }
 
     public static HittableList smallSpheres() {
@@ -129,7 +231,7 @@ public class Scenes {
             }
         }
 
-        objects.add(new BVHNode(spheres, 0, 1));
+        objects.add(new FlatBVH(spheres, 0, 1));
         return objects;
     }
 
@@ -202,14 +304,13 @@ public class Scenes {
         Vec3 boxPos = new Vec3(1, 0.2, 1);
         Material metal = new Metal(new Color(.7, .7, .7), .2);
         Hittable box = new Box(new Point3(0, 0, 0), new Point3(boxSize, boxSize, boxSize), metal);
-        box = new RotateY(box, boxAngle);
-        box = new Translate(box, boxPos);
+        box = new Instance(box, Transform.rotationY(boxAngle).then(Transform.translation(boxPos)));
         objects.add(box);
 
         // top of box
         Hittable topBox = new XZRect(0, boxSize, 0, boxSize, 0, metal);
-        topBox = new RotateY(topBox, boxAngle);
-        topBox = new Translate(topBox, Vec3.add(boxPos, new Vec3(0, boxSize, 0)));
+        topBox = new Instance(topBox, Transform.rotationY(boxAngle)
+            .then(Transform.translation(Vec3.add(boxPos, new Vec3(0, boxSize, 0)))));
         objects.add(topBox);
 
         Material red = new Lambertian(new Color(.65, .05, .05));
@@ -223,16 +324,15 @@ public class Scenes {
         objects.add(new XZRect(-4, 4, -4, 4, 5, diffLightWhite));
 
         Hittable rightLight = new XYRect(-2, 2, 0, 3, 0, diffLightBlue);
-        rightLight = new RotateY(rightLight, -40);
-        rightLight = new Translate(rightLight, new Vec3(4, .5, -4));
+        rightLight = new Instance(rightLight, Transform.rotationY(-40)
+            .then(Transform.translation(new Vec3(4, .5, -4))));
         objects.add(rightLight);
 
         Hittable leftLight = new XYRect(-2, 2, 0, 3, 0, diffLightPink);
-        leftLight = new RotateY(leftLight, 10);
-        leftLight = new Translate(leftLight, new Vec3(3, .5, 4));
+        leftLight = new Instance(leftLight, Transform.rotationY(10).then(Transform.translation(new Vec3(3, .5, 4))));
         objects.add(leftLight);
 
-        return objects;
+        return topLevel(objects);
     }
 
     public static HittableList rotations() {
@@ -253,8 +353,8 @@ public class Scenes {
             new Point3(cubeSize, cubeSize, cubeSize),
             cubeX
         );
-        cube1 = new RotateX(cube1, 30);
-        cube1 = new Translate(cube1, new Vec3(-5, 2, forward - 0.2));
+        cube1 = new Instance(cube1, Transform.rotationX(30)
+            .then(Transform.translation(new Vec3(-5, 2, forward - 0.2))));
         objects.add(cube1);
 
         Hittable cube2 = new Box(
@@ -262,8 +362,7 @@ public class Scenes {
             new Point3(cubeSize, cubeSize, cubeSize),
             cubeY
         );
-        cube2 = new RotateY(cube2, 30);
-        cube2 = new Translate(cube2, new Vec3(0, 2, forward + 0.2));
+        cube2 = new Instance(cube2, Transform.rotationY(30).then(Transform.translation(new Vec3(0, 2, forward + 0.2))));
         objects.add(cube2);
 
         Hittable cube3 = new Box(
@@ -271,8 +370,7 @@ public class Scenes {
             new Point3(cubeSize, cubeSize, cubeSize),
             cubeZ
         );
-        cube3 = new RotateZ(cube3, 30);
-        cube3 = new Translate(cube3, new Vec3(5, 2, forward - 0.2));
+        cube3 = new Instance(cube3, Transform.rotationZ(30).then(Transform.translation(new Vec3(5, 2, forward - 0.2))));
         objects.add(cube3);
 
         Material bigCubeMat = new Lambertian(new NoiseTexture(
@@ -285,10 +383,10 @@ public class Scenes {
             new Point3(bigCubeSize, bigCubeSize, bigCubeSize),
             bigCubeMat
         );
-        bigCube = new RotateX(bigCube, -20);
-        bigCube = new RotateY(bigCube, 25);
-        bigCube = new RotateZ(bigCube, -5);
-        bigCube = new Translate(bigCube, new Vec3(0, 4.8, -10));
+        bigCube = new Instance(bigCube, Transform.rotationX(-20)
+            .then(Transform.rotationY(25))
+            .then(Transform.rotationZ(-5))
+            .then(Transform.translation(new Vec3(0, 4.8, -10))));
         objects.add(bigCube);
 
         // wall
@@ -300,11 +398,10 @@ public class Scenes {
         Material lightMat = new DiffuseLight(new Color(2, 2, 2));
 
         Hittable light = new XZRect(-40, 40, -40, 40, 0, lightMat);
-        light = new RotateX(light, 40);
-        light = new Translate(light, new Vec3(0, 20, 15));
+        light = new Instance(light, Transform.rotationX(40).then(Transform.translation(new Vec3(0, 20, 15))));
         objects.add(light);
 
-        return objects;
+        return topLevel(objects);
     }
 
     public static HittableList cornellBox() {
@@ -326,17 +423,15 @@ public class Scenes {
 
         // cuboid in the back, 170 x 170 x 340, rotated counterclockwise
         Hittable box1 = new Box(new Point3(0, 0, 0), new Point3(170, 340, 170), white);
-        box1 = new RotateY(box1, 15);
-        box1 = new Translate(box1, new Vec3(60, 0, 80));
+        box1 = new Instance(box1, Transform.rotationY(15).then(Transform.translation(new Vec3(60, 0, 80))));
         objects.add(box1);
 
         // cube in the front, length 170, rotated clockwise
         Hittable box2 = new Box(new Point3(0, 0, 0), new Point3(170, 170, 170), white);
-        box2 = new RotateY(box2, -20);
-        box2 = new Translate(box2, new Vec3(290, 0, 250));
+        box2 = new Instance(box2, Transform.rotationY(-20).then(Transform.translation(new Vec3(290, 0, 250))));
         objects.add(box2);
 
-        return objects;
+        return topLevel(objects);
     }
 
     public static HittableList cornellBoxSmoke() {
@@ -358,18 +453,16 @@ public class Scenes {
 
         // cuboid in the back, 170 x 170 x 340, rotated counterclockwise
         Hittable box1 = new Box(new Point3(0, 0, 0), new Point3(170, 340, 170), white);
-        box1 = new RotateY(box1, 15);
-        box1 = new Translate(box1, new Vec3(60, 0, 80));
+        box1 = new Instance(box1, Transform.rotationY(15).then(Transform.translation(new Vec3(60, 0, 80))));
 
         // cube in the front, length 170, rotated clockwise
         Hittable box2 = new Box(new Point3(0, 0, 0), new Point3(170, 170, 170), white);
-        box2 = new RotateY(box2, -20);
-        box2 = new Translate(box2, new Vec3(290, 0, 250));
+        box2 = new Instance(box2, Transform.rotationY(-20).then(Transform.translation(new Vec3(290, 0, 250))));
 
         objects.add(new ConstantMedium(box1, 0.01, new Color(0, 0, 0)));
         objects.add(new ConstantMedium(box2, 0.01, new Color(1, 1, 1)));
 
-        return objects;
+        return topLevel(objects);
     }
 
     public static HittableList finalScene() {
@@ -401,14 +494,14 @@ public class Scenes {
             }
         }
 
-        objects.add(new BVHNode(groundBoxes, 0, 1));
+        objects.add(new FlatBVH(groundBoxes, 0, 1));
 
         // ---------------------------------------------------------------------------------- light & fog
         Material lightMat = new DiffuseLight(new Color(2, 2, 2));
         Hittable light = new XZRect(-1000, 1000, -1000, 1000, 0, lightMat);
-        light = new RotateY(light, 45);
-        light = new RotateX(light, 45);
-        light = new Translate(light, new Vec3(0, 1300, 300));
+        light = new Instance(light, Transform.rotationY(45)
+            .then(Transform.rotationX(45))
+            .then(Transform.translation(new Vec3(0, 1300, 300))));
         objects.add(light);
 
         Sphere fogBoundary = new Sphere(new Point3(), 3000, new Dielectric(1.5));
@@ -426,9 +519,9 @@ public class Scenes {
             new Point3(100, 100, 100),
             new Lambertian(texture)
         );
-        checkerBox = new RotateX(checkerBox, 30);
-        checkerBox = new RotateY(checkerBox, 20);
-        checkerBox = new Translate(checkerBox, new Vec3(360, 170, 660));
+        checkerBox = new Instance(checkerBox, Transform.rotationX(30)
+            .then(Transform.rotationY(20))
+            .then(Transform.translation(new Vec3(360, 170, 660))));
         objects.add(checkerBox);
 
         // ---------------------------------------------------------------------------------- cube of spheres
@@ -446,9 +539,9 @@ public class Scenes {
                 Utility.randomChoice(smallSphereMat))
             );
         }
-        Hittable cubeSpheresBVH = new BVHNode(cubeSpheres, 0, 1);
-        cubeSpheresBVH = new RotateY(cubeSpheresBVH, -20);
-        cubeSpheresBVH = new Translate(cubeSpheresBVH, new Vec3(590, 120, 360));
+        Hittable cubeSpheresBVH = new FlatBVH(cubeSpheres, 0, 1);
+        cubeSpheresBVH = new Instance(cubeSpheresBVH, Transform.rotationY(-20)
+            .then(Transform.translation(new Vec3(590, 120, 360))));
         objects.add(cubeSpheresBVH);
 
         // ---------------------------------------------------------------------------------- other stuff
@@ -458,7 +551,7 @@ public class Scenes {
         Material glass = new Dielectric(1.5);
         objects.add(new Sphere(new Point3(650, 140, 730), 20, glass));
 
-        return objects;
+        return topLevel(objects);
     }
 
     public static HittableList bokeh() {
@@ -492,7 +585,7 @@ public class Scenes {
                 ));
             }
         }
-        Hittable spheresBVH = new BVHNode(spheres, 0, 1);
+        Hittable spheresBVH = new FlatBVH(spheres, 0, 1);
         objects.add(spheresBVH);
 
         Material wallMat = new Lambertian(new Color(.1, .1, .1));
@@ -509,15 +602,14 @@ public class Scenes {
             new Point3(cubeSize, cubeSize, cubeSize),
             cubeMat
         );
-        cube = new RotateY(cube, 30);
-        cube = new Translate(cube, new Vec3(0, cubeSize * 1.5, 35));
+        cube = new Instance(cube, Transform.rotationY(30).then(Transform.translation(new Vec3(0, cubeSize * 1.5, 35))));
 
         Hittable platform = new Box(
             new Point3(-cubeSize * 6, -1, -cubeSize * 2),
             new Point3(cubeSize * 6, cubeSize * 0.5, cubeSize * 2),
             new Lambertian(new Color(0.08, 0.08, 0.08))
         );
-        platform = new Translate(platform, new Vec3(0, 0, 35));
+        platform = new Instance(platform, Transform.translation(new Vec3(0, 0, 35)));
 
         objects.add(cube);
         objects.add(platform);
@@ -525,11 +617,54 @@ public class Scenes {
         // ----------------------------------------------------------------------------------------- light
         Material lightMat = new DiffuseLight(new Color(8.5, 8.5, 8.5));
         Hittable light = new XYRect(-5, 5, -5, 5, 0, lightMat);
-        light = new RotateX(light, -50);
-        light = new Translate(light, new Vec3(0, 10, 45));
+        light = new Instance(light, Transform.rotationX(-50).then(Transform.translation(new Vec3(0, 10, 45))));
 
         objects.add(light);
 
+        return topLevel(objects);
+    }
+
+    public static HittableList instances() {
+        // 2500 copies of a cluster of 1500 spheres: the cluster is built once and every copy is an instance of it,
+        // a bvh over the instances finds the copies a ray can hit
+        HittableList objects = new HittableList();
+
+        Material groundMaterial = new Lambertian(Utility.hexToColor("#cbbecf"));
+        objects.add(new XZRect(-100000, 100000, -100000, 100000, 0, groundMaterial));
+
+        Material[] sphereMat = {
+            new Lambertian(Utility.hexToColor("#5ec1ff")),
+            new Lambertian(Utility.hexToColor("#ff8375")),
+            new Lambertian(Utility.hexToColor("#ffd70d"))
+        };
+        HittableList clusterSpheres = new HittableList();
+        for (int i = 0; i < 1500; i++) {
+            clusterSpheres.add(new Sphere(Vec3.random(0, 150).toPoint3(), 10, Utility.randomChoice(sphereMat)));
+        }
+        Hittable cluster = new FlatBVH(clusterSpheres, 0, 1);
+
+        // cluster centered above the origin, scaled, turned and moved onto a grid
+        HittableList copies = new HittableList();
+        int rows = 50, columns = 50;
+        double spacing = 300;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                double scale = Utility.randomDouble(0.5, 1);
+                copies.add(new Instance(cluster, Transform.translation(new Vec3(-75, 10, -75))
+                    .then(Transform.scaling(scale, scale, scale))
+                    .then(Transform.rotationY(Utility.randomDouble(0, 360)))
+                    .then(Transform.translation(new Vec3((column - columns / 2.0) * spacing, 0, -row * spacing)))));
+            }
+        }
+        objects.add(new FlatBVH(copies, 0, 1));
+
         return objects;
     }
-}
\ No newline at end of file
+
+    // the objects of a scene with instances under a bvh, so a ray only goes into the instances whose boxes it hits
+    private static HittableList topLevel(HittableList objects) {
+        HittableList world = new HittableList();
+        world.add(new FlatBVH(objects, 0, 1));
+        return world;
+    }
+}
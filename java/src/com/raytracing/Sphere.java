@@ -1,6 +1,8 @@
 package com.raytracing;
 
-public class Sphere implements Hittable {
+import java.util.List;
+
+public class Sphere implements Primitive {
 
     private final Point3 center;
     private final double radius;
@@ -14,15 +16,37 @@ public class Sphere implements Hittable {
 
     @Override
     public boolean hit(Ray r, double tMin, double tMax, HitRecord rec) {
-        Vec3 oc = Vec3.sub(r.getOrigin(), this.center);
-        double a = r.getDirection().lengthSquared();
-        double h = Vec3.dot(oc, r.getDirection());
-        double c = oc.lengthSquared() - (this.radius * this.radius);
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        double root = nearestRoot(r, tMin, tMax);
+        if (Double.isNaN(root))
+            return false;
+
+        rec.setHit(r, root, this);
+        return true;
+    }
+
+    @Override
+    public boolean occluded(Ray r, double tMin, double tMax) {
+        if (Stats.ENABLED) Stats.get().primitiveTests++;
+        return !Double.isNaN(nearestRoot(r, tMin, tMax));
+    }
+
+    // t of the nearest intersection between tMin and tMax, NaN if there is none
+    private double nearestRoot(Ray r, double tMin, double tMax) {
+        // oc = origin - center, in components so nothing is allocated
+        Vec3 d = r.getDirection();
+        double ocX = r.getOrigin().x() - this.center.x();
+        double ocY = r.getOrigin().y() - this.center.y();
+        double ocZ = r.getOrigin().z() - this.center.z();
+
+        double a = d.lengthSquared();
+        double h = ocX * d.x() + ocY * d.y() + ocZ * d.z();
+        double c = (ocX * ocX + ocY * ocY + ocZ * ocZ) - (this.radius * this.radius);
 
         // value under sqrt, if > 0 => ray intersects
         double discriminant = (h * h) - (a * c);
         if (discriminant < 0) {
-            return false;
+            return Double.NaN;
         }
 
         double sqrtD = Math.sqrt(discriminant);
@@ -31,35 +55,81 @@ public class Sphere implements Hittable {
         if (root < tMin || root > tMax) {
             root = (-h + sqrtD) / a;
             if (root < tMin || root > tMax) {
-                return false; // root not in range
+                return Double.NaN; // root not in range
             }
         }
 
-        rec.setT(root);
-        rec.setP(r.at(rec.getT()));
+        return root;
+    }
+
+    @Override
+    public void hitAttributes(Ray r, double t, HitRecord rec) {
+        rec.setP(r, t);
 
         // normal = (rec.p - center) / radius
-        Vec3 outwardNormal = Vec3.div(Vec3.sub(rec.getP(), this.center), radius);
-        rec.setFaceNormal(r, outwardNormal);
-
-        double[] uvCoords = getSphereUV(outwardNormal.toPoint3());
-        rec.setU(uvCoords[0]);
-        rec.setV(uvCoords[1]);
+        double s = 1 / this.radius;
+        double nX = (rec.getP().x() - this.center.x()) * s;
+        double nY = (rec.getP().y() - this.center.y()) * s;
+        double nZ = (rec.getP().z() - this.center.z()) * s;
+        rec.setFaceNormal(r, nX, nY, nZ);
+
+        rec.setU(getSphereU(nX, nZ));
+        rec.setV(getSphereV(nY));
         rec.setMaterial(this.material);
-
-        return true;
     }
 
     @Override
     public boolean boundingBox(double time0, double time1, AABB outputBox) {
         // bounding box for a sphere is really easy => one "corner" to the diagonal "corner"
-        outputBox.setMinimum(Vec3.sub(this.center, new Vec3(radius, radius, radius)).toPoint3());
-        outputBox.setMaximum(Vec3.add(this.center, new Vec3(radius, radius, radius)).toPoint3());
+        outputBox.setMinimum(new Vec3(center.x() - radius, center.y() - radius, center.z() - radius));
+        outputBox.setMaximum(new Vec3(center.x() + radius, center.y() + radius, center.z() + radius));
 
         return true;
     }
 
-    public static double[] getSphereUV(Point3 p) {
+    @Override
+    public double pdfValue(Vec3 origin, Vec3 direction) {
+        // uniform density over the cone of directions from origin that hit the sphere
+        HitRecord rec = new HitRecord();
+        if (!this.hit(new Ray(origin, direction, 0), 0.001, Utility.Infinity, rec))
+            return 0;
+
+        double distanceSquared = Vec3.sub(this.center, origin).lengthSquared();
+        if (distanceSquared <= this.radius * this.radius)
+            return 0; // origin inside the sphere, there is no cone
+
+        double cosThetaMax = Math.sqrt(1 - this.radius * this.radius / distanceSquared);
+        double solidAngle = 2 * Utility.PI * (1 - cosThetaMax);
+
+        return 1 / solidAngle;
+    }
+
+    @Override
+    public Vec3 random(Vec3 origin) {
+        // random direction inside the cone from origin around the sphere, built in a basis around the center
+        Vec3 w = Vec3.sub(this.center, origin);
+        double distanceSquared = w.lengthSquared();
+        w.normalizeLocal();
+        Vec3 a = (Math.abs(w.x()) > 0.9) ? new Vec3(0, 1, 0) : new Vec3(1, 0, 0);
+        Vec3 v = Vec3.unitVector(Vec3.cross(w, a));
+        Vec3 u = Vec3.cross(w, v);
+
+        double r1 = Utility.randomDouble();
+        double r2 = Utility.randomDouble();
+        double cosThetaMax = Math.sqrt(Math.max(0, 1 - this.radius * this.radius / distanceSquared));
+        double z = 1 + r2 * (cosThetaMax - 1);
+        double phi = 2 * Utility.PI * r1;
+        double sinTheta = Math.sqrt(1 - z * z);
+
+        return w.mulLocal(z).addScaledLocal(u, Math.cos(phi) * sinTheta).addScaledLocal(v, Math.sin(phi) * sinTheta);
+    }
+
+    @Override
+    public void collectLights(List<Hittable> lights) {
+        if (this.material.isEmissive()) lights.add(this);
+    }
+
+    public static double[] getSphereUV(Vec3 p) {
         /*
          p: a given point on the sphere of radius one, centered at the origin.
          u: returned value [0,1] of angle around the Y axis from X=-1.
@@ -69,12 +139,17 @@ public class Sphere implements Hittable {
              <0 0 1> yields <0.25 0.50>       < 0  0 -1> yields <0.75 0.50>
         */
 
-        double theta = Math.acos(p.negate().y());
-        double phi = Math.atan2(p.negate().z(), p.x()) + Utility.PI;
+        return new double[]{getSphereU(p.x(), p.z()), getSphereV(p.y())};
+    }
 
-        double u = phi / (2 * Utility.PI);
-        double v = theta / Utility.PI;
+    // u and v of getSphereUV one at a time, without the array
+    public static double getSphereU(double x, double z) {
+        double phi = Math.atan2(-z, x) + Utility.PI;
+        return phi / (2 * Utility.PI);
+    }
 
-        return new double[]{u, v};
+    public static double getSphereV(double y) {
+        double theta = Math.acos(-y);
+        return theta / Utility.PI;
     }
 }
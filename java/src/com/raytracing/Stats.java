@@ -0,0 +1,107 @@
+package com.raytracing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class Stats {
+    /* render statistics, to see why a scene is slow:
+        rays cast per bounce depth, shadow rays, bvh nodes visited (= bounding box tests) and primitive
+        intersection tests (spheres and rectangles; a medium isn't counted itself, only the two queries of its
+        boundary, which are the work it does). Every thread counts into its own instance, without any
+        synchronization, and the instances are added up once the render is done.
+
+        Counting is off unless the program is started with -Draytracing.stats=true. ENABLED is a static final,
+        so the JIT treats it as a constant and removes the counting code completely when it is off. Every place
+        that counts checks it first:
+            if (Stats.ENABLED) Stats.get().primitiveTests++;
+     */
+
+    public static final boolean ENABLED = Boolean.getBoolean("raytracing.stats");
+
+    // rays of deeper bounces are counted in the last entry
+    public static final int DEPTHS = 16;
+
+    // counters of every thread, those of finished threads are dropped by reset()
+    private static final List<Stats> THREADS = new ArrayList<>();
+    private static final ThreadLocal<Stats> LOCAL = ThreadLocal.withInitial(() -> {
+        Stats stats = new Stats();
+        synchronized (THREADS) {
+            THREADS.add(stats);
+        }
+        return stats;
+    });
+
+    private final Thread thread = Thread.currentThread(); // thread counting into this instance
+    final long[] rays = new long[DEPTHS];
+    long shadowRays;
+    long nodesVisited;
+    long primitiveTests;
+
+    // counters of the current thread
+    public static Stats get() {
+        return LOCAL.get();
+    }
+
+    // sets the counters of all threads to 0, only while nothing is being rendered. Threads which are gone (pools of
+    // earlier renders) are dropped, so the list doesn't keep growing from render to render
+    public static void reset() {
+        synchronized (THREADS) {
+            THREADS.removeIf(stats -> !stats.thread.isAlive());
+            for (Stats stats : THREADS) {
+                Arrays.fill(stats.rays, 0);
+                stats.shadowRays = 0;
+                stats.nodesVisited = 0;
+                stats.primitiveTests = 0;
+            }
+        }
+    }
+
+    // sum of the counters of all threads, only while nothing is being rendered
+    public static Stats merge() {
+        Stats total = new Stats();
+        synchronized (THREADS) {
+            for (Stats stats : THREADS) {
+                for (int d = 0; d < DEPTHS; d++) {
+                    total.rays[d] += stats.rays[d];
+                }
+                total.shadowRays += stats.shadowRays;
+                total.nodesVisited += stats.nodesVisited;
+                total.primitiveTests += stats.primitiveTests;
+            }
+        }
+        return total;
+    }
+
+    public void ray(int depth) {
+        this.rays[Math.min(depth, DEPTHS - 1)]++;
+    }
+
+    // work spent on finding intersections so far, for the traversal cost heatmap
+    public long traversalCost() {
+        return this.nodesVisited + this.primitiveTests;
+    }
+
+    public long totalRays() {
+        long total = this.shadowRays;
+        for (long r : this.rays) total += r;
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        long total = Math.max(1, totalRays());
+
+        s.append(String.format("Rays: %d (%d shadow rays)%n", totalRays(), this.shadowRays));
+        for (int d = 0; d < DEPTHS && this.rays[d] > 0; d++) {
+            s.append(String.format("  depth %2d%s: %d%n", d, (d == DEPTHS - 1) ? "+" : " ", this.rays[d]));
+        }
+        s.append(String.format("BVH nodes visited: %d (%.1f per ray)%n",
+            this.nodesVisited, (double) this.nodesVisited / total));
+        s.append(String.format("Primitive tests: %d (%.1f per ray)%n",
+            this.primitiveTests, (double) this.primitiveTests / total));
+
+        return s.toString();
+    }
+}
@@ -7,7 +7,7 @@ import java.io.IOException;
 import java.util.Arrays;
 
 public abstract class Texture {
-    public abstract Color value(double u, double v, Point3 p);
+    public abstract Color value(double u, double v, Vec3 p);
 }
 
 class SolidColor extends Texture {
@@ -26,7 +26,7 @@ class SolidColor extends Texture {
     }
 
     @Override
-    public Color value(double u, double v, Point3 p) {
+    public Color value(double u, double v, Vec3 p) {
         return colorValue;
     }
 }
@@ -63,7 +63,7 @@ class CheckerTexture extends Texture {
     }
 
     @Override
-    public Color value(double u, double v, Point3 p) {
+    public Color value(double u, double v, Vec3 p) {
         /*
          We can create a checker texture by noting that the sign of sine and cosine just alternates in a
          regular way, and if we multiply trig functions in all three dimensions, the sign of that product forms
@@ -100,25 +100,16 @@ class NoiseTexture extends Texture {
     }
 
     @Override
-    public Color value(double u, double v, Point3 p) {
+    public Color value(double u, double v, Vec3 p) {
+        // albedo * 0.5 * (1 + sin(...))
+        double s;
         if (turbulence) {
-            return Vec3.mul(
-                Vec3.mul(
-                    this.albedo,
-                    0.5
-                ),
-                1 + Math.sin(this.scale * p.getComp(2) + 10 * perlin.turbulence(p, 7))
-            ).toColor();
-
+            s = 0.5 * (1 + Math.sin(this.scale * p.z() + 10 * perlin.turbulence(p, 7)));
         } else {
-            return Vec3.mul(
-                Vec3.mul(
-                    this.albedo,
-                    0.5
-                ),
-                1 + Math.sin(this.scale * p.getComp(1) + 10 * perlin.noise(p))
-            ).toColor();
+            s = 0.5 * (1 + Math.sin(this.scale * p.y() + 10 * perlin.noise(p)));
         }
+
+        return new Color(this.albedo.x() * s, this.albedo.y() * s, this.albedo.z() * s);
     }
 }
 
@@ -134,6 +125,10 @@ class ImageTexture extends Texture {
     }
 
     public ImageTexture(String filename) {
+        RenderEvents.TextureLoad event = new RenderEvents.TextureLoad();
+        event.begin();
+        event.file = filename;
+
         try {
             BufferedImage image = ImageIO.read(new File(filename));
             this.width = image.getWidth();
@@ -146,10 +141,14 @@ class ImageTexture extends Texture {
             System.err.println("ERROR: Could not load texture image file '" + filename + "'");
             this.width = this.height = 0;
         }
+
+        event.width = this.width;
+        event.height = this.height;
+        event.commit();
     }
 
     @Override
-    public Color value(double u, double v, Point3 p) {
+    public Color value(double u, double v, Vec3 p) {
         // if we have no texture data, then return solid cyan as a debugging aid.
         if (data == null) {
             return new Color(0, 1, 1);
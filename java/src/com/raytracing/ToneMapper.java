@@ -0,0 +1,119 @@
+package com.raytracing;
+
+import java.util.stream.IntStream;
+
+public class ToneMapper {
+    /* post-processing of the linear framebuffer into 8 bit colors:
+        1. exposure: the color is multiplied with 2^exposure
+        2. tone mapping: squeezes the (unlimited) range of the light into [0, 1]
+            - CLAMP:    everything above 1 is cut off, the original behaviour
+            - REINHARD: L / (1 + L) on the luminance, keeps the hue of bright lights
+            - ACES:     filmic curve (Narkowicz' fit of the ACES reference transform), per channel
+        3. gamma correction: v^(1/gamma), gamma = 2 is the sqrt used before
+
+        The gamma step is a lookup table: every entry holds the 8 bit value at the start of its interval, and the
+        exact thresholds between the 8 bit values correct the few entries in which the value changes. That is as
+        exact as calling pow() for every channel, but a lot cheaper. Images are mapped in parallel over the rows.
+     */
+
+    public enum Operator {CLAMP, REINHARD, ACES}
+
+    private static final int LUT_SIZE = 4096;
+
+    private final double scale;
+    private final Operator operator;
+    private final double gamma;
+    private final int[] lut = new int[LUT_SIZE + 1];
+    private final double[] thresholds = new double[257]; // smallest tone mapped value which gives each 8 bit value
+
+    /**
+     * @param exposure exposure correction in stops, 0 leaves the image as it is
+     * @param operator tone mapping curve
+     * @param gamma gamma of the output, 2 is the default of this ray tracer
+     */
+    public ToneMapper(double exposure, Operator operator, double gamma) {
+        this.scale = Math.pow(2, exposure);
+        this.operator = operator;
+        this.gamma = gamma;
+
+        // 8 bit value k covers the encoded range [k / 256, (k + 1) / 256)
+        for (int k = 0; k <= 256; k++) {
+            this.thresholds[k] = (k == 0) ? -Utility.Infinity : Math.pow(k / 256.0, gamma);
+        }
+        this.thresholds[256] = Utility.Infinity; // 255 is the largest value (0.999 is the clamp of the old code)
+
+        for (int i = 0; i <= LUT_SIZE; i++) {
+            double v = (double) i / LUT_SIZE;
+            int k = 0;
+            while (v >= this.thresholds[k + 1]) k++;
+            this.lut[i] = k;
+        }
+    }
+
+    // default of the renderer: no exposure correction, clamping and gamma 2
+    public ToneMapper() {
+        this(0, Operator.CLAMP, 2);
+    }
+
+    /**
+     * Maps the average of a pixel's samples to an 8 bit color.
+     * @param sum sum of all samples of the pixel
+     * @param samples number of samples
+     * @return packed RGB color (0xRRGGBB)
+     */
+    public int toRGB(Color sum, int samples) {
+        double s = this.scale / Math.max(1, samples);
+        double r = sum.x() * s;
+        double g = sum.y() * s;
+        double b = sum.z() * s;
+
+        switch (this.operator) {
+            case REINHARD -> {
+                double luminance = 0.2126 * r + 0.7152 * g + 0.0722 * b;
+                double f = (luminance > 0) ? 1 / (1 + luminance) : 1;
+                r *= f;
+                g *= f;
+                b *= f;
+            }
+            case ACES -> {
+                r = aces(r);
+                g = aces(g);
+                b = aces(b);
+            }
+            case CLAMP -> { }
+        }
+
+        return (encode(r) << 16) | (encode(g) << 8) | encode(b);
+    }
+
+    /**
+     * Maps the whole framebuffer, the rows are processed in parallel.
+     * @return packed RGB colors, row by row from the top of the image
+     */
+    public int[] map(FrameBuffer frameBuffer) {
+        int width = frameBuffer.getWidth();
+        int[] rgb = new int[width * frameBuffer.getHeight()];
+
+        IntStream.range(0, frameBuffer.getHeight()).parallel().forEach(y -> {
+            for (int x = 0; x < width; x++) {
+                rgb[y * width + x] = toRGB(frameBuffer.getColor(x, y), frameBuffer.getSamples(x, y));
+            }
+        });
+
+        return rgb;
+    }
+
+    private static double aces(double x) {
+        return Utility.clamp((x * (2.51 * x + 0.03)) / (x * (2.43 * x + 0.59) + 0.14), 0, 1);
+    }
+
+    // gamma corrected 8 bit value of v
+    private int encode(double v) {
+        if (!(v > 0)) return 0;
+        if (v >= 1) return this.lut[LUT_SIZE];
+
+        int k = this.lut[(int) (v * LUT_SIZE)];
+        while (v >= this.thresholds[k + 1]) k++;
+        return k;
+    }
+}
@@ -0,0 +1,189 @@
+package com.raytracing;
+
+public class Transform {
+    /* affine transformation from the space of an object to the world: p -> L p + t, i.e. the 4x4 matrix
+            | L t |
+            | 0 1 |
+        L is kept together with its inverse, so rays go into the object with (L^-1 (p - t), L^-1 d) and normals
+        come out with (L^-1)^T n without inverting anything per ray. Transformations are built from translations,
+        rotations and scalings with then(), which also composes the inverses exactly (a rotation's inverse is its
+        transpose). Objects are placed with them by Instance.
+     */
+
+    public static final Transform IDENTITY = new Transform(
+        new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, 0, 0, 0
+    );
+
+    private final double[] l;   // 3x3 row by row
+    private final double[] inv; // inverse of l
+    private final double tx, ty, tz;
+    private final boolean rigid; // l keeps lengths, so normals stay unit vectors and solid angles stay the same
+
+    private Transform(double[] l, double[] inv, double tx, double ty, double tz) {
+        this.l = l;
+        this.inv = inv;
+        this.tx = tx;
+        this.ty = ty;
+        this.tz = tz;
+
+        boolean rigid = true;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double dot = l[i] * l[j] + l[3 + i] * l[3 + j] + l[6 + i] * l[6 + j]; // (L^T L)[i][j]
+                rigid &= Math.abs(dot - ((i == j) ? 1 : 0)) < 1e-9;
+            }
+        }
+        this.rigid = rigid;
+    }
+
+    public static Transform translation(Vec3 offset) {
+        return new Transform(IDENTITY.l, IDENTITY.inv, offset.x(), offset.y(), offset.z());
+    }
+
+    // rotations by angle degrees around the x, y and z axes
+    public static Transform rotationX(double angle) {
+        double radians = Utility.degToRad(angle);
+        double sin = Math.sin(radians), cos = Math.cos(radians);
+        return rotation(new double[]{1, 0, 0, 0, cos, -sin, 0, sin, cos});
+    }
+
+    public static Transform rotationY(double angle) {
+        double radians = Utility.degToRad(angle);
+        double sin = Math.sin(radians), cos = Math.cos(radians);
+        return rotation(new double[]{cos, 0, sin, 0, 1, 0, -sin, 0, cos});
+    }
+
+    public static Transform rotationZ(double angle) {
+        double radians = Utility.degToRad(angle);
+        double sin = Math.sin(radians), cos = Math.cos(radians);
+        return rotation(new double[]{cos, -sin, 0, sin, cos, 0, 0, 0, 1});
+    }
+
+    private static Transform rotation(double[] l) {
+        double[] transposed = new double[9];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                transposed[3 * i + j] = l[3 * j + i];
+            }
+        }
+        return new Transform(l, transposed, 0, 0, 0);
+    }
+
+    public static Transform scaling(double x, double y, double z) {
+        return new Transform(
+            new double[]{x, 0, 0, 0, y, 0, 0, 0, z}, new double[]{1 / x, 0, 0, 0, 1 / y, 0, 0, 0, 1 / z}, 0, 0, 0
+        );
+    }
+
+    // this transformation followed by next
+    public Transform then(Transform next) {
+        return new Transform(
+            multiply(next.l, this.l), multiply(this.inv, next.inv),
+            next.l[0] * this.tx + next.l[1] * this.ty + next.l[2] * this.tz + next.tx,
+            next.l[3] * this.tx + next.l[4] * this.ty + next.l[5] * this.tz + next.ty,
+            next.l[6] * this.tx + next.l[7] * this.ty + next.l[8] * this.tz + next.tz
+        );
+    }
+
+    private static double[] multiply(double[] a, double[] b) {
+        double[] product = new double[9];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                product[3 * i + j] = a[3 * i] * b[j] + a[3 * i + 1] * b[3 + j] + a[3 * i + 2] * b[6 + j];
+            }
+        }
+        return product;
+    }
+
+    public boolean isRigid() {
+        return this.rigid;
+    }
+
+    // |det L^-1|: how much the transformation shrinks volumes going into the object
+    public double inverseDeterminant() {
+        double[] m = this.inv;
+        return Math.abs(m[0] * (m[4] * m[8] - m[5] * m[7])
+            - m[1] * (m[3] * m[8] - m[5] * m[6])
+            + m[2] * (m[3] * m[7] - m[4] * m[6]));
+    }
+
+    // ---------------------------------------------------------------------- into the object (results written to out)
+
+    public void toObject(Ray r, Ray out) {
+        toObjectPoint(r.getOrigin(), out.getOrigin());
+        toObjectVector(r.getDirection(), out.getDirection());
+        out.setTime(r.getTime());
+    }
+
+    public void toObjectPoint(Vec3 p, Vec3 out) {
+        double x = p.x() - this.tx, y = p.y() - this.ty, z = p.z() - this.tz;
+        out.set(
+            this.inv[0] * x + this.inv[1] * y + this.inv[2] * z,
+            this.inv[3] * x + this.inv[4] * y + this.inv[5] * z,
+            this.inv[6] * x + this.inv[7] * y + this.inv[8] * z
+        );
+    }
+
+    public void toObjectVector(Vec3 v, Vec3 out) {
+        double x = v.x(), y = v.y(), z = v.z();
+        out.set(
+            this.inv[0] * x + this.inv[1] * y + this.inv[2] * z,
+            this.inv[3] * x + this.inv[4] * y + this.inv[5] * z,
+            this.inv[6] * x + this.inv[7] * y + this.inv[8] * z
+        );
+    }
+
+    // ------------------------------------------------------------------------ out of the object (results written to out)
+
+    public void toWorldPoint(Vec3 p, Vec3 out) {
+        double x = p.x(), y = p.y(), z = p.z();
+        out.set(
+            this.l[0] * x + this.l[1] * y + this.l[2] * z + this.tx,
+            this.l[3] * x + this.l[4] * y + this.l[5] * z + this.ty,
+            this.l[6] * x + this.l[7] * y + this.l[8] * z + this.tz
+        );
+    }
+
+    public void toWorldVector(Vec3 v, Vec3 out) {
+        double x = v.x(), y = v.y(), z = v.z();
+        out.set(
+            this.l[0] * x + this.l[1] * y + this.l[2] * z,
+            this.l[3] * x + this.l[4] * y + this.l[5] * z,
+            this.l[6] * x + this.l[7] * y + this.l[8] * z
+        );
+    }
+
+    // normals go out with the transpose of the inverse, so they stay perpendicular to the (scaled) surface
+    public void toWorldNormal(Vec3 n, Vec3 out) {
+        double x = n.x(), y = n.y(), z = n.z();
+        out.set(
+            this.inv[0] * x + this.inv[3] * y + this.inv[6] * z,
+            this.inv[1] * x + this.inv[4] * y + this.inv[7] * z,
+            this.inv[2] * x + this.inv[5] * y + this.inv[8] * z
+        );
+        if (!this.rigid) out.normalizeLocal();
+    }
+
+    // bounding box of the transformed box: the box around its 8 transformed corners
+    public void toWorld(AABB box, AABB out) {
+        Point3 min = new Point3(Utility.Infinity, Utility.Infinity, Utility.Infinity);
+        Point3 max = new Point3(-Utility.Infinity, -Utility.Infinity, -Utility.Infinity);
+        Vec3 corner = new Vec3();
+
+        for (int i = 0; i < 8; i++) {
+            corner.set(
+                ((i & 1) != 0) ? box.getMaximum().x() : box.getMinimum().x(),
+                ((i & 2) != 0) ? box.getMaximum().y() : box.getMinimum().y(),
+                ((i & 4) != 0) ? box.getMaximum().z() : box.getMinimum().z()
+            );
+            toWorldPoint(corner, corner);
+
+            for (int c = 0; c < 3; c++) {
+                min.setComp(c, Math.min(min.getComp(c), corner.getComp(c)));
+                max.setComp(c, Math.max(max.getComp(c), corner.getComp(c)));
+            }
+        }
+
+        out.set(new AABB(min, max));
+    }
+}
@@ -1,24 +1,33 @@
 package com.raytracing;
 
-import java.util.Random;
-
 public class Utility {
     // Constants
     public static final double Infinity = Double.POSITIVE_INFINITY;
     public static final double PI = 3.1415926535897932385;
 
+    // one generator per thread, no locking or allocation when drawing numbers
+    private static final ThreadLocal<Rng> RNG = ThreadLocal.withInitial(Rng::new);
+
     // Utility Functions
     public static double degToRad(double deg) {
         return deg * PI / 180;
     }
 
     public static double randomDouble() {
-        Random random = new Random();
-        return random.nextDouble();
+        return RNG.get().nextDouble();
     }
     public static double randomDouble(double min, double max) {
-        Random random = new Random();
-        return min + (max - min) * random.nextDouble();
+        return min + (max - min) * RNG.get().nextDouble();
+    }
+
+    // seeds the random numbers of the current thread, e.g. to build the same scene on every run
+    public static void setSeed(long seed) {
+        RNG.get().setSeed(seed);
+    }
+
+    // seeds the random numbers of the current thread for one sample of one pixel
+    public static void setSeed(long pixel, int sample, int frame) {
+        RNG.get().setSeed(pixel, sample, frame);
     }
 
     public static int randomInt(int min, int max) {
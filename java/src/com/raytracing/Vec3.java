@@ -3,52 +3,122 @@ package com.raytracing;
 import java.lang.Math;
 
 public class Vec3 {
-    private double[] e = new double[3];
+    // plain fields instead of an array: one object per vector, which the JIT can often scalar replace
+    private double x;
+    private double y;
+    private double z;
 
     public Vec3() {
-        e = new double[]{0, 0, 0};
+        this(0, 0, 0);
     }
 
     public Vec3(double e0, double e1, double e2) {
-        this.e[0] = e0;
-        this.e[1] = e1;
-        this.e[2] = e2;
+        this.x = e0;
+        this.y = e1;
+        this.z = e2;
     }
 
     public double x() {
-        return this.e[0];
+        return this.x;
     }
 
     public double y() {
-        return this.e[1];
+        return this.y;
     }
 
     public double z() {
-        return this.e[2];
+        return this.z;
     }
 
     public Vec3 negate() {
-        return new Vec3(-this.e[0], -this.e[1], -this.e[2]);
+        return new Vec3(-this.x, -this.y, -this.z);
     }
 
     public double getComp(int comp) {
-        return this.e[comp];
+        return switch (comp) {
+            case 0 -> this.x;
+            case 1 -> this.y;
+            case 2 -> this.z;
+            default -> throw new IndexOutOfBoundsException("Vec3 component " + comp);
+        };
     }
 
     public void setComp(int comp, double val) {
-        this.e[comp] = val;
+        switch (comp) {
+            case 0 -> this.x = val;
+            case 1 -> this.y = val;
+            case 2 -> this.z = val;
+            default -> throw new IndexOutOfBoundsException("Vec3 component " + comp);
+        }
     }
 
     public void set(double x, double y, double z) {
-        this.e[0] = x;
-        this.e[1] = y;
-        this.e[2] = z;
+        this.x = x;
+        this.y = y;
+        this.z = z;
     }
 
     public void set(Vec3 newVec) {
-        this.e[0] = newVec.e[0];
-        this.e[1] = newVec.e[1];
-        this.e[2] = newVec.e[2];
+        this.x = newVec.x;
+        this.y = newVec.y;
+        this.z = newVec.z;
+    }
+
+    // in-place variants of the static functions below: they change this vector and return it, nothing is allocated
+    public Vec3 addLocal(Vec3 v) {
+        this.x += v.x;
+        this.y += v.y;
+        this.z += v.z;
+        return this;
+    }
+
+    public Vec3 subLocal(Vec3 v) {
+        this.x -= v.x;
+        this.y -= v.y;
+        this.z -= v.z;
+        return this;
+    }
+
+    public Vec3 mulLocal(Vec3 v) {
+        this.x *= v.x;
+        this.y *= v.y;
+        this.z *= v.z;
+        return this;
+    }
+
+    public Vec3 mulLocal(double t) {
+        this.x *= t;
+        this.y *= t;
+        this.z *= t;
+        return this;
+    }
+
+    // this += v * t
+    public Vec3 addScaledLocal(Vec3 v, double t) {
+        this.x += v.x * t;
+        this.y += v.y * t;
+        this.z += v.z * t;
+        return this;
+    }
+
+    // this += u * v (component-wise)
+    public Vec3 addProductLocal(Vec3 u, Vec3 v) {
+        this.x += u.x * v.x;
+        this.y += u.y * v.y;
+        this.z += u.z * v.z;
+        return this;
+    }
+
+    // this += u * v * t (component-wise)
+    public Vec3 addProductLocal(Vec3 u, Vec3 v, double t) {
+        this.x += u.x * v.x * t;
+        this.y += u.y * v.y * t;
+        this.z += u.z * v.z * t;
+        return this;
+    }
+
+    public Vec3 normalizeLocal() {
+        return mulLocal(1 / length());
     }
 
     public double length() {
@@ -56,81 +126,79 @@ public class Vec3 {
     }
 
     public double lengthSquared() {
-        return this.e[0] * this.e[0] + this.e[1] * this.e[1] + this.e[2] * this.e[2];
+        return this.x * this.x + this.y * this.y + this.z * this.z;
     }
 
     // function to check whether the vector is very close to being zero in any dimension
     public boolean nearZero() {
         final double s = 1e-8;
-        return (Math.abs(this.e[0]) < s) && (Math.abs(this.e[1]) < s) && (Math.abs(this.e[2]) < s);
+        return (Math.abs(this.x) < s) && (Math.abs(this.y) < s) && (Math.abs(this.z) < s);
     }
 
     public String toString() {
-        return this.e[0] + " " + this.e[1] + " " + this.e[2];
+        return this.x + " " + this.y + " " + this.z;
     }
 
+    // copies, only meant for building scenes. Points and colors are passed around as Vec3 everywhere else
     public Color toColor() {
-        return new Color(this.e[0], this.e[1], this.e[2]);
+        return new Color(this.x, this.y, this.z);
     }
 
     public Point3 toPoint3() {
-        return new Point3(this.x(), this.y(), this.z());
+        return new Point3(this.x, this.y, this.z);
     }
 
     // Utility (static)
     public static Vec3 add(Vec3 u, Vec3 v) {
-        return new Vec3(u.e[0] + v.e[0], u.e[1] + v.e[1], u.e[2] + v.e[2]);
+        return new Vec3(u.x + v.x, u.y + v.y, u.z + v.z);
     }
 
     public static Vec3 sub(Vec3 u, Vec3 v) {
-        return new Vec3(u.e[0] - v.e[0], u.e[1] - v.e[1], u.e[2] - v.e[2]);
+        return new Vec3(u.x - v.x, u.y - v.y, u.z - v.z);
     }
 
     public static Vec3 mul(Vec3 u, Vec3 v) {
-        return new Vec3(u.e[0] * v.e[0], u.e[1] * v.e[1], u.e[2] * v.e[2]);
+        return new Vec3(u.x * v.x, u.y * v.y, u.z * v.z);
     }
     public static Vec3 mul(Vec3 v, double t) {
-        return new Vec3(v.e[0] * t, v.e[1] * t, v.e[2] * t);
+        return new Vec3(v.x * t, v.y * t, v.z * t);
     }
 
     public static Vec3 div(Vec3 v, double t) {
-        return mul(v, 1 / t);
+        double s = 1 / t;
+        return new Vec3(v.x * s, v.y * s, v.z * s);
     }
 
     public static double dot(Vec3 u, Vec3 v) {
-        return u.e[0] * v.e[0] + u.e[1] * v.e[1] + u.e[2] * v.e[2];
+        return u.x * v.x + u.y * v.y + u.z * v.z;
     }
 
     public static Vec3 cross(Vec3 u, Vec3 v) {
         return new Vec3(
-            u.e[1] * v.e[2] - u.e[2] * v.e[1],
-            u.e[2] * v.e[0] - u.e[0] * v.e[2],
-            u.e[0] * v.e[1] - u.e[1] * v.e[0]
+            u.y * v.z - u.z * v.y,
+            u.z * v.x - u.x * v.z,
+            u.x * v.y - u.y * v.x
         );
     }
 
     public static Vec3 reflect(Vec3 v, Vec3 n) {
         // return v - 2 * dot(v, n) * n
-        return Vec3.sub(
-            v,
-            Vec3.mul(n, 2 * dot(v, n))
-        );
+        double s = 2 * dot(v, n);
+        return new Vec3(v.x - n.x * s, v.y - n.y * s, v.z - n.z * s);
     }
 
     public static Vec3 refract(Vec3 uv, final Vec3 n, double etaiOverEtat) {
         // very complicated math that I don't understand, but we ball
-        double cosTheta = Math.min(dot(uv.negate(), n), 1);
+        double cosTheta = Math.min(-dot(uv, n), 1);
         // rOutPerp = etaiOverEtat * (uv + cosTheta * n))
-        Vec3 rOutPerp = Vec3.mul(
-            Vec3.add(uv, Vec3.mul(n, cosTheta)),
-            etaiOverEtat
-        );
-        Vec3 rOutParallel = Vec3.mul(n, -Math.sqrt(Math.abs(1 - rOutPerp.lengthSquared())));
-        return Vec3.add(rOutPerp, rOutParallel);
+        Vec3 rOut = new Vec3(uv.x, uv.y, uv.z).addScaledLocal(n, cosTheta).mulLocal(etaiOverEtat);
+        // rOutParallel = -sqrt(|1 - |rOutPerp|^2|) * n
+        return rOut.addScaledLocal(n, -Math.sqrt(Math.abs(1 - rOut.lengthSquared())));
     }
 
     public static Vec3 unitVector(Vec3 v) {
-        return div(v, v.length());
+        double s = 1 / v.length();
+        return new Vec3(v.x * s, v.y * s, v.z * s);
     }
 
     public static Vec3 random() {
@@ -146,20 +214,24 @@ public class Vec3 {
     }
 
     public static Vec3 randomInUnitSphere() {
+        // rejection sampling on plain doubles, only the accepted point becomes a vector
         while (true) {
-            Vec3 p = random(-1, 1);
-            if (p.lengthSquared() >= 1) {
+            double x = Utility.randomDouble(-1, 1);
+            double y = Utility.randomDouble(-1, 1);
+            double z = Utility.randomDouble(-1, 1);
+            if (x * x + y * y + z * z >= 1) {
                 continue;
             }
-            return p;
+            return new Vec3(x, y, z);
         }
     }
 
     public static Vec3 randomInUnitDisk() {
         while (true) {
-            Vec3 p = new Vec3(Utility.randomDouble(-1, 1), Utility.randomDouble(-1, 1), 0);
-            if (p.lengthSquared() >= 1) continue;
-            return p;
+            double x = Utility.randomDouble(-1, 1);
+            double y = Utility.randomDouble(-1, 1);
+            if (x * x + y * y >= 1) continue;
+            return new Vec3(x, y, 0);
         }
     }
 
@@ -175,7 +247,7 @@ public class Vec3 {
         if (dot(inUnitSphere, normal) > 0) {
             return inUnitSphere;
         } else {
-            return inUnitSphere.negate();
+            return inUnitSphere.mulLocal(-1);
         }
     }
 }